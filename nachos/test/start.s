@@ -32,6 +32,24 @@ __main:
 	jr	$31
 	.end	__main
 
+/* -------------------------------------------------------------
+ * __thread_start
+ *	Run a thread started by thread_create(), by calling func(arg),
+ *	with func in r4 and arg in r5. If func returns, the thread
+ *	exits with its return value.
+ * -------------------------------------------------------------
+ */
+
+	.globl	__thread_start
+	.ent	__thread_start
+__thread_start:
+	addu	$25,$4,$0
+	addu	$4,$5,$0
+	jalr	$25
+	addu	$4,$2,$0
+	jal	thread_exit	 /* never returns */
+	.end	__thread_start
+
 /* -------------------------------------------------------------
  * System call stubs:
  *	Assembly language assist to make system calls to the Nachos kernel.
@@ -67,3 +85,34 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(thread_join, syscallThreadJoin)
+	SYSCALLSTUB(thread_exit, syscallThreadExit)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(pread, syscallPread)
+	SYSCALLSTUB(pwrite, syscallPwrite)
+	SYSCALLSTUB(io_setup, syscallIOSetup)
+	SYSCALLSTUB(io_enter, syscallIOEnter)
+	SYSCALLSTUB(frames, syscallFrames)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(kernel_page, syscallKernelPage)
+
+/* -------------------------------------------------------------
+ * thread_create
+ *	Like the stubs above, but also passes the kernel the address
+ *	of __thread_start, in r6, for the new thread to start at.
+ * -------------------------------------------------------------
+ */
+
+	.globl	thread_create
+	.ent	thread_create
+thread_create:
+	la	$6,__thread_start
+	addiu	$2,$0,syscallThreadCreate
+	syscall
+	j	$31
+	.end	thread_create
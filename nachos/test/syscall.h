@@ -25,6 +25,22 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallThreadCreate	15
+#define syscallThreadJoin	16
+#define syscallThreadExit	17
+#define syscallFork		18
+#define syscallMunmap		19
+#define syscallReadv		20
+#define syscallWritev		21
+#define syscallPread		22
+#define syscallPwrite		23
+#define syscallIOSetup		24
+#define syscallIOEnter		25
+#define syscallFrames		26
+#define syscallPipe		27
+#define syscallKernelPage	28
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +125,19 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process, running a
+ * copy of the calling thread from the point of the call. The child shares
+ * the parent's memory copy-on-write: a page is only copied when either
+ * process first writes it. Only the calling thread is copied into the child.
+ * Like a process started by exec(), the child starts with only stdin and
+ * stdout open, and without the parent's memory-mapped files.
+ *
+ * Returns the child's process ID (which can be passed to join()) in the
+ * parent, 0 in the child, or -1 if an error occurred.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -181,6 +210,162 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * A buffer for readv() and writev(): len bytes starting at base.
+ */
+struct iovec {
+    void *base;
+    int len;
+};
+
+/**
+ * Like read(), but fill the iovcnt buffers described by iov in order, each
+ * one completely before the next. At most 16 buffers may be given. The data
+ * is read from the file with as few file operations as possible, so one
+ * readv() is usually much cheaper than a read() per buffer.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the iovcnt buffers described by iov in order. At
+ * most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like read(), but read from the given offset in the file instead of the file
+ * position, which is left unchanged. fileDescriptor must refer to a file, not
+ * a stream.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Like write(), but write at the given offset in the file instead of the file
+ * position, which is left unchanged. fileDescriptor must refer to a file, not
+ * a stream.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * A request in the submission ring of io_setup(). opcode is IO_READ or
+ * IO_WRITE; the other fields are the arguments of the matching read() or
+ * write() call, except that a non-negative offset makes it a pread() or
+ * pwrite(). data is copied to the completion unchanged.
+ */
+struct io_sqe {
+    int opcode;
+    int fd;
+    void *buffer;
+    int count;
+    int offset;
+    int data;
+};
+
+/**
+ * A completion in the completion ring of io_setup(): the data field of the
+ * request, and what the matching read() or write() would have returned.
+ */
+struct io_cqe {
+    int data;
+    int result;
+};
+
+#define IO_READ		0
+#define IO_WRITE	1
+
+/**
+ * The header of an asynchronous I/O ring, which is followed in memory by the
+ * entries themselves. Entry i of the ring is at index (i % entries). The
+ * producer adds entries at tail and then advances it; the consumer takes them
+ * from head and then advances it. The kernel is the consumer of the
+ * submission ring and the producer of the completion ring.
+ */
+struct io_ring {
+    int head;
+    int tail;
+};
+
+/**
+ * Register a submission ring (of struct io_sqe) and a completion ring (of
+ * struct io_cqe) for asynchronous I/O. Both rings have the given number of
+ * entries, which must be a power of two no larger than 256, and both must be
+ * zeroed before the call. A process can only register one pair of rings.
+ *
+ * Requests run in parallel on kernel threads, in no particular order, and
+ * each posts a completion when it is done. Completions can be collected
+ * without a system call, by watching the tail of the completion ring.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int io_setup(struct io_ring *sq, struct io_ring *cq, int entries);
+
+/**
+ * Start every request added to the submission ring since the last call, as
+ * long as the completion ring has room for its result; requests that do not
+ * fit are left in the submission ring. Then wait until the completion ring
+ * holds at least minComplete entries, or until no requests are in progress.
+ *
+ * Returns the number of requests started, or -1 if an error occurred.
+ */
+int io_enter(int minComplete);
+
+/**
+ * Return the number of physical memory frames in use by the calling process
+ * (if pid is 0), or by the child process with the given process ID, which
+ * must not have been joined yet. A frame shared by several processes, such as
+ * a page of program code, counts once in each of them.
+ *
+ * Returns the number of frames, or -1 if pid does not name such a process.
+ */
+int frames(int pid);
+
+/**
+ * Create a pipe, a one-way stream of bytes that can hold up to 4096 bytes at
+ * a time. A file descriptor for reading from the pipe is stored in fds[0],
+ * and one for writing to it in fds[1]. A process created by fork() shares the
+ * pipes of its parent, at the same file descriptors.
+ *
+ * Unlike other streams, read() on an empty pipe waits until some data is
+ * written, and returns 0 (end-of-file) once every write descriptor for the
+ * pipe has been closed. write() waits for room in the pipe, and fails once
+ * every read descriptor has been closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * The kernel data page, which the kernel keeps up to date in every process.
+ * ticks is the current time, and pid the ID of the calling process. The
+ * counters cover every process since the kernel started. The page is
+ * refreshed whenever the process is switched in and at every timer interrupt
+ * and return from a system call or other exception, so the time it shows can
+ * be a few hundred ticks old.
+ */
+struct kernel_page {
+    unsigned int ticksLow;
+    unsigned int ticksHigh;
+    int pid;
+    int numProcesses;
+    int numSyscalls;
+    int numPageFaults;
+};
+
+/**
+ * Return the address of the kernel data page. The page is read-only, and its
+ * address never changes, so a program can call this once and then read the
+ * page as often as it likes without system calls.
+ */
+struct kernel_page *kernel_page();
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -224,10 +409,24 @@ int unlink(char *name);
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
  *
+ * address must be page-aligned, and none of the pages the file will occupy
+ * may already be in use. Pages are read from the file the first time they
+ * are touched, and the part of the last page beyond the end of the file is
+ * zero-filled. The mapping never changes the length of the file.
+ *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the mapping created by mmap() at address, writing any dirty pages
+ * back to the file first. The file descriptor stays open, and can be read
+ * and written again.
+ *
+ * Returns 0 on success, or -1 if no file is mapped at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -257,6 +456,72 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* THREAD MANAGEMENT SYSCALLS: thread_create, thread_join, thread_exit
+ *
+ * Every thread in a process shares its address space and file descriptors.
+ * Each thread other than the first runs on its own stack, which the kernel
+ * maps above the argument page when the thread is created.
+ *
+ * exit() terminates every thread in the process. The process also exits,
+ * with the status of its last thread, once all of its threads have called
+ * thread_exit().
+ */
+
+/**
+ * Start a new thread in the current process, running func(arg) on a fresh
+ * stack. If func returns, the thread exits as if it had called thread_exit()
+ * with func's return value.
+ *
+ * Returns the new thread's identifier, or -1 if an error occurred.
+ */
+int thread_create(int (*func)(void *), void *arg);
+
+/**
+ * Suspend execution of the current thread until the thread specified by tid
+ * has exited, then disown it so that it cannot be joined again. If status is
+ * not null, the thread's exit status is stored there.
+ *
+ * Returns 0 on success, or -1 if tid is not a joinable thread of the current
+ * process.
+ */
+int thread_join(int tid, int *status);
+
+/**
+ * Terminate the calling thread. If it is the last thread in the process, the
+ * process exits with the specified status.
+ *
+ * thread_exit() never returns.
+ */
+void thread_exit(int status);
+
+/* USER-LEVEL SYNCHRONIZATION SYSCALLS: futex_wait, futex_wake
+ *
+ * These are building blocks for user-level locks and condition variables.
+ * A lock word is manipulated in user memory without trapping; only a thread
+ * that must block, or that must wake a blocked thread, calls into the kernel.
+ * Futexes are identified by the physical page backing addr, so two
+ * processes sharing a page can synchronize on it.
+ */
+
+/**
+ * If the word at addr still holds expected, block the calling thread until
+ * another thread calls futex_wake() on the same word. The comparison and
+ * the block are atomic with respect to futex_wake().
+ *
+ * addr must be word-aligned.
+ *
+ * Returns 0 when woken, or -1 if the word did not hold expected or addr is
+ * invalid. Callers should re-check their lock word in either case.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up at most count threads blocked in futex_wait() on the word at addr.
+ *
+ * Returns the number of threads woken, or -1 if addr is invalid.
+ */
+int futex_wake(int *addr, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
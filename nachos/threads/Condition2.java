@@ -58,7 +58,7 @@ public class Condition2 {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Machine.interrupt().disable();
+	boolean intStatus = Machine.interrupt().disable();
 
 	conditionLock.release();
 	KThread thread = KThread.currentThread();
@@ -66,7 +66,7 @@ public class Condition2 {
 	KThread.sleep();
 
 	conditionLock.acquire();
-	Machine.interrupt().enable();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -76,13 +76,11 @@ public class Condition2 {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	
-	Machine.interrupt().disable();
+	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-		thread.ready();
-		System.out.println("Wake up a thread");
-	}
-	Machine.interrupt().enable();    
+	if (thread != null)
+	    thread.ready();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -91,11 +89,12 @@ public class Condition2 {
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	while(waitQueue.nextThread() != null){
-		System.out.println("Wake up a thread");
-		wake();
-	}
-	Machine.interrupt().enable();
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    thread.ready();
+	Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
@@ -0,0 +1,367 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed executables, so that running the same program again
+ * neither parses its headers nor reads its sections from the file system a
+ * second time. Images are keyed by file name and length. Section pages are
+ * copied into the cache as processes first load them.
+ *
+ * <p>
+ * The cache holds at most <tt>maxImages</tt> images and
+ * <tt>maxBytes</tt> bytes of section pages, evicting the least recently
+ * used images to stay within both. An evicted image stays usable by the
+ * processes already running it, and its file is closed when the last of
+ * them is done.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new, empty cache.
+     *
+     * @param	maxImages	the maximum number of images to keep.
+     * @param	maxBytes	the maximum number of bytes of section pages to
+     *				keep.
+     */
+    public CoffCache(int maxImages, int maxBytes) {
+	this.maxImages = maxImages;
+	this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the executable in the specified file, using the cached image if
+     * there is one. Takes ownership of <i>file</i>: it is either closed now
+     * or when the image leaves the cache. The caller must close the returned
+     * <tt>Coff</tt> when done with it.
+     *
+     * @param	file	the executable file.
+     * @return	the executable.
+     * @exception	EOFException	if the file is not a valid executable.
+     */
+    public Coff open(OpenFile file) throws EOFException {
+	String key = file.getName() + ":" + file.length();
+
+	boolean intStatus = Machine.interrupt().disable();
+	Image image = images.get(key);
+	if (image != null)
+	    image.refCount++;
+	Machine.interrupt().restore(intStatus);
+
+	if (image != null) {
+	    Lib.debug(dbgCache, "CoffCache hit for " + key);
+	    file.close();
+	    return new CachedCoff(image);
+	}
+
+	Lib.debug(dbgCache, "CoffCache miss for " + key);
+
+	Image loaded = new Image(key, new Coff(file), file);
+
+	// another process may have loaded the same file while this one blocked
+	intStatus = Machine.interrupt().disable();
+	image = images.get(key);
+	if (image == null) {
+	    image = loaded;
+	    discard(images.put(key, image));
+	}
+	image.refCount++;
+	evict();
+	Machine.interrupt().restore(intStatus);
+
+	if (image != loaded) {
+	    Lib.debug(dbgCache, "CoffCache lost race for " + key);
+	    loaded.coff.close();
+	}
+
+	return new CachedCoff(image);
+    }
+
+    /**
+     * Evict least recently used images until the cache is within its
+     * bounds. Interrupts must be disabled.
+     */
+    private void evict() {
+	Iterator<Image> i = images.values().iterator();
+	while (i.hasNext() && (images.size() > maxImages ||
+			       cachedBytes > maxBytes)) {
+	    Image image = i.next();
+	    i.remove();
+
+	    Lib.debug(dbgCache, "CoffCache evicting " + image.key);
+	    discard(image);
+	}
+    }
+
+    /**
+     * Mark an image just removed from the cache as evicted, closing it if
+     * nothing uses it. Interrupts must be disabled.
+     *
+     * @param	image	the image, or <tt>null</tt> to do nothing.
+     */
+    private void discard(Image image) {
+	if (image == null)
+	    return;
+
+	image.evicted = true;
+	cachedBytes -= image.numBytes;
+	if (image.refCount == 0)
+	    image.coff.close();
+    }
+
+    /**
+     * Drop a reference to an image, closing it if it has been evicted and
+     * nothing else uses it.
+     */
+    private void release(Image image) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(image.refCount > 0);
+	if (--image.refCount == 0 && image.evicted)
+	    image.coff.close();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Load consecutive pages of a section into physical memory. If the
+     * section belongs to a cached image and some of the pages have not been
+     * cached yet, they are all read with a single file operation, rather
+     * than one per page; otherwise they are loaded one at a time.
+     *
+     * @param	section	the section, returned by a <tt>Coff</tt> that this
+     *			cache opened.
+     * @param	spn	the first page of the section to load.
+     * @param	ppns	the physical pages to load into.
+     * @param	count	the number of pages to load.
+     */
+    public void loadPages(CoffSection section, int spn, int[] ppns,
+			  int count) {
+	Lib.assertTrue(spn >= 0 && count > 0 &&
+		       spn+count <= section.getLength());
+
+	if (count == 1 || !(section instanceof CachedSection) ||
+	    !((CachedSection) section).loadPages(spn, ppns, count)) {
+	    for (int i=0; i<count; i++)
+		section.loadPage(spn+i, ppns[i]);
+	}
+    }
+
+    /**
+     * Find where each section's contents start in an image's file, by
+     * reading the headers again, since <tt>CoffSection</tt> keeps this to
+     * itself. The headers are read with a single file operation. If they do
+     * not describe the sections the image was loaded with, batched loads are
+     * disabled for the image.
+     */
+    private void readSectionHeaders(Image image) {
+	byte[] headers = new byte[Math.min(image.file.length(), pageSize)];
+	int numSections = image.coff.getNumSections();
+
+	if (image.file.read(0, headers, 0, headers.length) == headers.length &&
+	    headers.length >= coffHeaderLength &&
+	    Lib.bytesToUnsignedShort(headers, 2) == numSections) {
+	    int offset = coffHeaderLength +
+		Lib.bytesToUnsignedShort(headers, 16);
+
+	    int[] contentOffsets = new int[numSections];
+	    int[] sizes = new int[numSections];
+	    for (int s=0; s<numSections && contentOffsets != null; s++) {
+		int base = offset + s*CoffSection.headerLength;
+		if (base + CoffSection.headerLength > headers.length) {
+		    contentOffsets = null;
+		    break;
+		}
+
+		int vaddr = Lib.bytesToInt(headers, base+12);
+		sizes[s] = Lib.bytesToInt(headers, base+16);
+		contentOffsets[s] = Lib.bytesToInt(headers, base+20);
+
+		CoffSection section = image.coff.getSection(s);
+		if (vaddr != section.getFirstVPN()*pageSize ||
+		    Lib.divRoundUp(sizes[s], pageSize) != section.getLength())
+		    contentOffsets = null;
+	    }
+
+	    image.contentOffsets = contentOffsets;
+	    image.sizes = sizes;
+	}
+
+	if (image.contentOffsets == null) {
+	    Lib.debug(dbgCache, "CoffCache cannot batch " + image.key);
+	    image.batchable = false;
+	}
+    }
+
+    /**
+     * Remember a copy of a section page just loaded into physical memory.
+     */
+    private void addPage(Image image, int s, int spn, int ppn) {
+	byte[] page = new byte[pageSize];
+	System.arraycopy(Machine.processor().getMemory(), ppn*pageSize,
+			 page, 0, pageSize);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!image.evicted && image.pages[s][spn] == null) {
+	    image.pages[s][spn] = page;
+	    image.numBytes += pageSize;
+	    cachedBytes += pageSize;
+	    evict();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** A parsed executable and the section pages read from it so far. */
+    private static class Image {
+	Image(String key, Coff coff, OpenFile file) {
+	    this.key = key;
+	    this.coff = coff;
+	    this.file = file;
+
+	    pages = new byte[coff.getNumSections()][][];
+	    for (int s=0; s<pages.length; s++)
+		pages[s] = new byte[coff.getSection(s).getLength()][];
+	}
+
+	String key;
+	Coff coff;
+	OpenFile file;
+	byte[][][] pages;
+	/** Where each section's contents start in the file, once known. */
+	int[] contentOffsets = null;
+	/** The size in bytes of each section's contents, once known. */
+	int[] sizes = null;
+	/** Whether the section headers could be matched to the sections. */
+	boolean batchable = true;
+	int numBytes = 0;
+	int refCount = 0;
+	boolean evicted = false;
+    }
+
+    /** A process's view of a cached image. */
+    private class CachedCoff extends Coff {
+	CachedCoff(Image image) {
+	    this.image = image;
+
+	    entryPoint = image.coff.getEntryPoint();
+	    sections = new CoffSection[image.coff.getNumSections()];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = new CachedSection(this, image, s);
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	    release(image);
+	    sections = null;
+	}
+
+	private Image image;
+    }
+
+    /** A section of a cached image. */
+    private class CachedSection extends CoffSection {
+	CachedSection(Coff coff, Image image, int s) {
+	    // CoffSection does not say whether a section is executable, and
+	    // nothing in the kernel asks
+	    super(coff, image.coff.getSection(s).getName(), false,
+		  image.coff.getSection(s).isReadOnly(),
+		  image.coff.getSection(s).getLength(),
+		  image.coff.getSection(s).getFirstVPN());
+
+	    this.image = image;
+	    this.s = s;
+	    initialized = image.coff.getSection(s).isInitialzed();
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    byte[] memory = Machine.processor().getMemory();
+
+	    if (!initialized) {
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+		return;
+	    }
+
+	    byte[] page = image.pages[s][spn];
+	    if (page != null) {
+		System.arraycopy(page, 0, memory, ppn*pageSize, pageSize);
+	    }
+	    else {
+		image.coff.getSection(s).loadPage(spn, ppn);
+		addPage(image, s, spn, ppn);
+	    }
+	}
+
+	/**
+	 * Load consecutive pages of this section with a single file read.
+	 * Returns <tt>false</tt>, having loaded nothing, if the pages must be
+	 * loaded one at a time instead.
+	 */
+	boolean loadPages(int spn, int[] ppns, int count) {
+	    if (!initialized)
+		return false;
+
+	    boolean cached = true;
+	    for (int i=0; i<count; i++)
+		cached &= (image.pages[s][spn+i] != null);
+	    if (cached)
+		return false;
+
+	    if (image.contentOffsets == null && image.batchable)
+		readSectionHeaders(image);
+	    if (!image.batchable)
+		return false;
+
+	    // the last page may be only partly in the file; the part read is
+	    // computed as CoffSection.loadPage() computes it
+	    int length = count*pageSize;
+	    if (spn+count == numPages) {
+		int size = image.sizes[s];
+		length -= pageSize - ((size == pageSize) ? pageSize :
+				      size % pageSize);
+	    }
+
+	    byte[] buffer = new byte[count*pageSize];
+	    Lib.strictReadFile(image.file,
+			       image.contentOffsets[s] + spn*pageSize,
+			       buffer, 0, length);
+
+	    byte[] memory = Machine.processor().getMemory();
+	    for (int i=0; i<count; i++) {
+		System.arraycopy(buffer, i*pageSize, memory, ppns[i]*pageSize,
+				 pageSize);
+		addPage(image, s, spn+i, ppns[i]);
+	    }
+
+	    return true;
+	}
+
+	private Image image;
+	private int s;
+    }
+
+    private int maxImages, maxBytes;
+    private int cachedBytes = 0;
+
+    /** The cached images, least recently used first. */
+    private LinkedHashMap<String,Image> images =
+	new LinkedHashMap<String,Image>(16, 0.75f, true);
+
+    private static final int pageSize = Processor.pageSize;
+    /** The length of the COFF file header. */
+    private static final int coffHeaderLength = 20;
+    private static final char dbgCache = 'c';
+}
@@ -0,0 +1,283 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * A pair of asynchronous I/O rings shared between a user process and the
+ * kernel. The process queues requests in a submission ring and collects
+ * their results from a completion ring, both in its own memory. Each ring
+ * starts with a head and a tail index, followed by its entries:
+ *
+ * <pre>
+ * struct io_sqe { int opcode; int fd; void *buffer; int count;
+ *		   int offset; int data; };
+ * struct io_cqe { int data; int result; };
+ * </pre>
+ *
+ * <p>
+ * The process fills in entries at the submission tail and advances it; a
+ * single <tt>io_enter()</tt> call then hands everything new to a pool of
+ * kernel worker threads, so that many requests against slow devices (every
+ * <tt>StubFileSystem</tt> operation blocks for a while) proceed at once.
+ * The workers post a completion entry for each request, which the process
+ * can pick up without another system call.
+ */
+public class IORing {
+    /**
+     * Allocate a new pair of rings, and start the worker threads that serve
+     * them.
+     *
+     * @param	process	the process the rings belong to.
+     * @param	sqAddr	the virtual address of the submission ring.
+     * @param	cqAddr	the virtual address of the completion ring.
+     * @param	entries	the number of entries in each ring, a power of two.
+     */
+    public IORing(UserProcess process, int sqAddr, int cqAddr, int entries) {
+	Lib.assertTrue(isValidSize(entries));
+
+	this.process = process;
+	this.sqAddr = sqAddr;
+	this.cqAddr = cqAddr;
+	this.entries = entries;
+
+	numWorkers = Math.min(entries, maxWorkers);
+	for (int i=0; i<numWorkers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() { serveRequests(); }
+		}).setName("io worker").fork();
+	}
+    }
+
+    /**
+     * Test whether the specified number of entries is allowed for a ring.
+     *
+     * @param	entries	the number of entries.
+     * @return	<tt>true</tt> if <i>entries</i> is a power of two no larger
+     *		than <tt>maxEntries</tt>.
+     */
+    public static boolean isValidSize(int entries) {
+	return entries > 0 && entries <= maxEntries &&
+	    (entries & (entries-1)) == 0;
+    }
+
+    /**
+     * Hand the requests added to the submission ring since the last call to
+     * the worker threads. Requests are only taken while there is room to
+     * complete them, so the completion ring can never overflow; the rest
+     * stay in the submission ring until a later call.
+     *
+     * @return	the number of requests submitted, or <tt>-1</tt> if the rings
+     *		could not be accessed.
+     */
+    public int submit() {
+	lock.acquire();
+
+	byte[] sqHeader = readHeader(sqAddr);
+	byte[] cqHeader = readHeader(cqAddr);
+	if (sqHeader == null || cqHeader == null) {
+	    lock.release();
+	    return -1;
+	}
+
+	int sqTail = Lib.bytesToInt(sqHeader, 4);
+	int cqHead = Lib.bytesToInt(cqHeader, 0);
+	if (sqTail - sqHead < 0 || sqTail - sqHead > entries) {
+	    lock.release();
+	    return -1;
+	}
+
+	byte[] sqe = new byte[sqeSize];
+	int submitted = 0;
+
+	while (sqHead != sqTail && numPending + (cqTail - cqHead) < entries) {
+	    int vaddr = sqAddr + 8 + (sqHead & (entries-1))*sqeSize;
+	    if (process.readVirtualMemory(vaddr, sqe) != sqeSize)
+		break;
+
+	    Request request = new Request();
+	    request.opcode = Lib.bytesToInt(sqe, 0);
+	    request.fd = Lib.bytesToInt(sqe, 4);
+	    request.buffer = Lib.bytesToInt(sqe, 8);
+	    request.count = Lib.bytesToInt(sqe, 12);
+	    request.offset = Lib.bytesToInt(sqe, 16);
+	    request.data = Lib.bytesToInt(sqe, 20);
+
+	    queue.add(request);
+	    numPending++;
+	    workAvailable.wake();
+
+	    sqHead++;
+	    submitted++;
+	}
+
+	writeInt(sqAddr, sqHead);
+
+	lock.release();
+	return submitted;
+    }
+
+    /**
+     * Wait until the completion ring holds at least the specified number of
+     * entries, or until no requests are left in progress. Returns early if
+     * the process is exiting.
+     *
+     * @param	minComplete	the number of completions to wait for.
+     * @return	<tt>0</tt> on success, or <tt>-1</tt> if the completion ring
+     *		could not be accessed.
+     */
+    public int waitForCompletions(int minComplete) {
+	lock.acquire();
+
+	int result = 0;
+	while (numPending > 0 && !process.isExiting()) {
+	    byte[] cqHeader = readHeader(cqAddr);
+	    if (cqHeader == null) {
+		result = -1;
+		break;
+	    }
+	    if (cqTail - Lib.bytesToInt(cqHeader, 0) >= minComplete)
+		break;
+
+	    completed.sleep();
+	}
+
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Wake every thread waiting for completions, so that they can give up
+     * once the process is exiting.
+     */
+    public void wakeWaiters() {
+	lock.acquire();
+	completed.wakeAll();
+	lock.release();
+    }
+
+    /**
+     * Stop the worker threads. Requests no worker has taken yet are dropped,
+     * since no one is left to collect their results; the call waits only for
+     * those already being performed. Must be called before the process
+     * releases its memory.
+     */
+    public void close() {
+	lock.acquire();
+
+	closing = true;
+	numPending -= queue.size();
+	queue.clear();
+	workAvailable.wakeAll();
+	while (numWorkers > 0)
+	    completed.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * The body of each worker thread. Repeatedly takes a request from the
+     * queue, performs it, and posts its completion.
+     */
+    private void serveRequests() {
+	lock.acquire();
+
+	while (true) {
+	    while (queue.isEmpty() && !closing)
+		workAvailable.sleep();
+
+	    if (queue.isEmpty())
+		break;
+
+	    Request request = queue.removeFirst();
+
+	    lock.release();
+	    int result = perform(request);
+	    lock.acquire();
+
+	    byte[] cqe = new byte[cqeSize];
+	    Lib.bytesFromInt(cqe, 0, request.data);
+	    Lib.bytesFromInt(cqe, 4, result);
+	    process.writeVirtualMemory(cqAddr + 8 +
+				       (cqTail & (entries-1))*cqeSize, cqe);
+	    cqTail++;
+	    writeInt(cqAddr + 4, cqTail);
+
+	    numPending--;
+	    completed.wakeAll();
+	}
+
+	numWorkers--;
+	completed.wakeAll();
+
+	lock.release();
+    }
+
+    private int perform(Request request) {
+	int pos = (request.offset < 0) ? -1 : request.offset;
+
+	switch (request.opcode) {
+	case opRead:
+	case opWrite:
+	    return process.transferFile(request.fd, pos,
+					new int[] { request.buffer },
+					new int[] { request.count },
+					request.opcode == opWrite);
+	default:
+	    return -1;
+	}
+    }
+
+    private byte[] readHeader(int vaddr) {
+	byte[] header = new byte[8];
+	if (process.readVirtualMemory(vaddr, header) != header.length)
+	    return null;
+
+	return header;
+    }
+
+    private void writeInt(int vaddr, int value) {
+	process.writeVirtualMemory(vaddr, Lib.bytesFromInt(value));
+    }
+
+    private static class Request {
+	int opcode;
+	int fd;
+	int buffer;
+	int count;
+	int offset;
+	int data;
+    }
+
+    private UserProcess process;
+    private int sqAddr, cqAddr;
+    private int entries;
+
+    /** The next submission entry to take, published as the ring's head. */
+    private int sqHead = 0;
+    /** The next completion entry to fill, published as the ring's tail. */
+    private int cqTail = 0;
+
+    private Lock lock = new Lock();
+    private Condition workAvailable = new Condition(lock);
+    private Condition completed = new Condition(lock);
+
+    private LinkedList<Request> queue = new LinkedList<Request>();
+    private int numPending = 0;
+    private int numWorkers;
+    private boolean closing = false;
+
+    /** The largest number of entries a ring may have. */
+    public static final int maxEntries = 256;
+    /** The number of worker threads serving each pair of rings. */
+    private static final int maxWorkers = 4;
+
+    private static final int sqeSize = 24;
+    private static final int cqeSize = 8;
+
+    /** Request opcodes. */
+    public static final int opRead = 0, opWrite = 1;
+}
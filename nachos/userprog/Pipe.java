@@ -0,0 +1,284 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A one-way stream of bytes between processes, buffered in a kernel ring
+ * buffer. Data is copied straight between the ring and the physical pages of
+ * the reading and writing processes, with no intermediate buffer.
+ *
+ * <p>
+ * Readers block while the pipe is empty and writers while it is full. To
+ * avoid waking the other side for every small transfer, each side wakes the
+ * other once per page it moves, and once more when it finishes or has to
+ * wait.
+ */
+public class Pipe {
+    /**
+     * Allocate a new, empty pipe with one open endpoint at each end.
+     */
+    public Pipe() {
+	readEnd = new Endpoint(false);
+	writeEnd = new Endpoint(true);
+    }
+
+    /**
+     * Return the endpoint for reading from this pipe.
+     *
+     * @return	the read endpoint created with this pipe.
+     */
+    public Endpoint getReadEnd() {
+	return readEnd;
+    }
+
+    /**
+     * Return the endpoint for writing to this pipe.
+     *
+     * @return	the write endpoint created with this pipe.
+     */
+    public Endpoint getWriteEnd() {
+	return writeEnd;
+    }
+
+    /**
+     * One end of a pipe, as an open file. A pipe reads end-of-file once all
+     * of its write endpoints are closed, and writing fails once all of its
+     * read endpoints are closed.
+     */
+    public class Endpoint extends OpenFile {
+	private Endpoint(boolean writing) {
+	    super(null, writing ? "pipe writer" : "pipe reader");
+	    this.writing = writing;
+
+	    if (writing)
+		numWriters++;
+	    else
+		numReaders++;
+	}
+
+	/**
+	 * Return another endpoint for the same end of this pipe, which stays
+	 * open until it is closed itself.
+	 *
+	 * @return	the new endpoint.
+	 */
+	public Endpoint duplicate() {
+	    lock.acquire();
+	    Lib.assertTrue(!closed);
+	    Endpoint endpoint = new Endpoint(writing);
+	    lock.release();
+
+	    return endpoint;
+	}
+
+	/**
+	 * Read up to <i>length</i> bytes from the pipe directly into the
+	 * virtual memory of a process. If <i>wait</i> is <tt>true</tt>, first
+	 * waits until at least one byte is available or every writer has
+	 * closed the pipe.
+	 *
+	 * @param	process	the process to read into.
+	 * @param	vaddr	the first virtual address to read into.
+	 * @param	length	the maximum number of bytes to read.
+	 * @param	wait	<tt>true</tt> to wait for data if the pipe is
+	 *			empty.
+	 * @return	the number of bytes read, <tt>0</tt> at end-of-file, or
+	 *		<tt>-1</tt> on error.
+	 */
+	public int read(UserProcess process, int vaddr, int length,
+			boolean wait) {
+	    if (writing || closed)
+		return -1;
+
+	    return transfer(false, wait, process, vaddr, null, 0, length);
+	}
+
+	/**
+	 * Write <i>length</i> bytes from the virtual memory of a process
+	 * directly into the pipe, waiting for room as needed.
+	 *
+	 * @param	process	the process to write from.
+	 * @param	vaddr	the first virtual address to write from.
+	 * @param	length	the number of bytes to write.
+	 * @return	the number of bytes written, or <tt>-1</tt> on error.
+	 */
+	public int write(UserProcess process, int vaddr, int length) {
+	    if (!writing || closed)
+		return -1;
+
+	    return transfer(true, true, process, vaddr, null, 0, length);
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (writing || closed)
+		return -1;
+
+	    return transfer(false, true, null, 0, buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (!writing || closed)
+		return -1;
+
+	    return transfer(true, true, null, 0, buf, offset, length);
+	}
+
+	public void close() {
+	    lock.acquire();
+
+	    if (!closed) {
+		closed = true;
+		if (writing) {
+		    numWriters--;
+		    readable.wakeAll();
+		}
+		else {
+		    numReaders--;
+		    writable.wakeAll();
+		}
+	    }
+
+	    lock.release();
+	}
+
+	/**
+	 * Wake every thread waiting on this pipe, so that any belonging to an
+	 * exiting process can give up.
+	 */
+	void wakeWaiters() {
+	    lock.acquire();
+	    readable.wakeAll();
+	    writable.wakeAll();
+	    lock.release();
+	}
+
+	private boolean writing;
+	private boolean closed = false;
+    }
+
+    /**
+     * Move data between the ring buffer and either a process's virtual
+     * memory or a kernel array. Copies are split at page boundaries of the
+     * ring, so that the other side can be woken once per page. A process
+     * that is exiting stops waiting, and moves only what it can at once.
+     *
+     * @param	writing	<tt>true</tt> to move data into the pipe.
+     * @param	wait	<tt>true</tt> if a read should wait while the pipe is
+     *			empty.
+     * @param	process	the process to copy to or from, or <tt>null</tt> to use
+     *			<i>buf</i>.
+     * @param	vaddr	the virtual address to copy to or from.
+     * @param	buf	the array to copy to or from, if <i>process</i> is
+     *			<tt>null</tt>.
+     * @param	offset	the first byte of <i>buf</i> to copy to or from.
+     * @param	length	the number of bytes to move.
+     * @return	the number of bytes moved, or <tt>-1</tt> on error.
+     */
+    private int transfer(boolean writing, boolean wait, UserProcess process,
+			 int vaddr, byte[] buf, int offset, int length) {
+	if (length < 0)
+	    return -1;
+
+	lock.acquire();
+
+	if (!writing && wait) {
+	    while (count == 0 && numWriters > 0 && !isExiting(process))
+		readable.sleep();
+	}
+
+	int done = 0, unsignaled = 0;
+	boolean fault = false;
+
+	while (done < length) {
+	    if (writing && numReaders == 0)
+		break;
+
+	    if (writing ? (count == capacity) : (count == 0)) {
+		if (!writing || isExiting(process))
+		    break;
+
+		if (unsignaled > 0) {
+		    readable.wakeAll();
+		    unsignaled = 0;
+		}
+		writable.sleep();
+		continue;
+	    }
+
+	    int pos = writing ? (head+count) % capacity : head;
+	    int amount = Math.min(length-done, pageSize - pos%pageSize);
+	    amount = Math.min(amount, writing ? capacity-count : count);
+	    amount = Math.min(amount, capacity-pos);
+
+	    int copied;
+	    if (process == null) {
+		if (writing)
+		    System.arraycopy(buf, offset+done, ring, pos, amount);
+		else
+		    System.arraycopy(ring, pos, buf, offset+done, amount);
+		copied = amount;
+	    }
+	    else if (writing) {
+		copied = process.readVirtualMemory(vaddr+done, ring, pos,
+						   amount);
+	    }
+	    else {
+		copied = process.writeVirtualMemory(vaddr+done, ring, pos,
+						    amount);
+	    }
+
+	    if (writing) {
+		count += copied;
+	    }
+	    else {
+		head = (head+copied) % capacity;
+		count -= copied;
+	    }
+	    done += copied;
+	    unsignaled += copied;
+
+	    if (copied < amount) {
+		fault = true;
+		break;
+	    }
+
+	    if (unsignaled >= pageSize) {
+		(writing ? readable : writable).wakeAll();
+		unsignaled = 0;
+	    }
+	}
+
+	if (unsignaled > 0)
+	    (writing ? readable : writable).wakeAll();
+
+	lock.release();
+
+	if (fault || (writing && done == 0 && length > 0))
+	    return -1;
+
+	return done;
+    }
+
+    private static boolean isExiting(UserProcess process) {
+	return process != null && process.isExiting();
+    }
+
+    private Endpoint readEnd, writeEnd;
+    private int numReaders = 0, numWriters = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 readable = new Condition2(lock);
+    private Condition2 writable = new Condition2(lock);
+
+    private byte[] ring = new byte[capacity];
+    /** The position of the oldest byte in the ring. */
+    private int head = 0;
+    /** The number of bytes in the ring. */
+    private int count = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    /** The number of bytes a pipe can hold. */
+    public static final int capacity = 4*pageSize;
+}
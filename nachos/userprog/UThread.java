@@ -24,8 +24,25 @@ public class UThread extends KThread {
 	this.process = process;
     }
 
+    /**
+     * Start this thread with the specified user register set, instead of the
+     * initial register set of its process. Must be called before this thread
+     * is forked. Used to start additional threads in an existing process.
+     *
+     * @param	registers	the initial contents of the user registers.
+     */
+    public void setUserRegisters(int[] registers) {
+	Lib.assertTrue(registers.length == Processor.numUserRegisters);
+
+	System.arraycopy(registers, 0, userRegisters, 0,
+			 Processor.numUserRegisters);
+	hasUserRegisters = true;
+    }
+
     private void runProgram() {
-	process.initRegisters();
+	// restoreState() has already loaded any registers we were given
+	if (!hasUserRegisters)
+	    process.initRegisters();
 	process.restoreState();
 
 	Machine.processor().run();
@@ -72,4 +89,22 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /** This thread's identifier within its process. */
+    public int tid;
+
+    /**
+     * The first page of this thread's private stack, or <tt>-1</tt> if this
+     * thread runs on the initial stack of its process.
+     */
+    int stackVPN = -1;
+    /** The status this thread passed to <tt>thread_exit()</tt>. */
+    int exitStatus = 0;
+    /**
+     * Set once this thread has exited, with its process's <tt>joinLock</tt>
+     * held, for <tt>thread_join()</tt>.
+     */
+    boolean finished = false;
+
+    private boolean hasUserRegisters = false;
 }
@@ -4,6 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.BitSet;
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -23,6 +26,25 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+	coffCache = new CoffCache(maxCachedImages, maxCachedBytes);
+
+	pageRefs = new int[Machine.processor().getNumPhysPages()];
+	usedPages = new BitSet(pageRefs.length);
+	freeStack = new int[pageRefs.length];
+	freeStackIndex = new int[pageRefs.length];
+	for (int ppn=0; ppn<pageRefs.length; ppn++)
+	    pushFreePage(ppn);
+
+	kernelPage = allocatePage();
+	UserProcess.zeroPage(kernelPage);
+
+	// refresh the kernel data page on every timer interrupt
+	Machine.timer().setInterruptHandler(new Runnable() {
+		public void run() {
+		    updateKernelPage();
+		    alarm.timerInterrupt();
+		}
+	    });
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -80,6 +102,66 @@ public class UserKernel extends ThreadedKernel {
 	UserProcess process = ((UThread) KThread.currentThread()).process;
 	int cause = Machine.processor().readRegister(Processor.regCause);
 	process.handleException(cause);
+
+	updateKernelPage();
+    }
+
+    /**
+     * Return the physical page holding the kernel data page, which every
+     * process maps read-only.
+     *
+     * @return	the physical page number of the kernel data page.
+     */
+    public static int getKernelPage() {
+	return kernelPage;
+    }
+
+    /**
+     * Return the physical page of zeros to which processes map their stack
+     * and uninitialized data until they write it. The page is allocated the
+     * first time it is asked for. The kernel keeps its own reference to it,
+     * so it always counts as shared, and a write always copies it.
+     *
+     * @return	the physical page number of the zero page, or <tt>-1</tt> if
+     *		no page was free for it.
+     */
+    public static int getZeroPage() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (zeroPage == -1) {
+	    zeroPage = allocatePage();
+	    if (zeroPage != -1)
+		UserProcess.zeroPage(zeroPage);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return zeroPage;
+    }
+
+    /**
+     * Refresh the kernel data page, so that user programs can read the time
+     * and their process ID without a system call. The page holds, as 32-bit
+     * words: the low and high halves of the current time in ticks, the ID of
+     * the current process, the number of processes, the number of syscalls
+     * made and the number of page faults taken. It is refreshed on every
+     * timer interrupt, every context switch to a user thread, and every
+     * return from an exception.
+     */
+    public static void updateKernelPage() {
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = kernelPage*Processor.pageSize;
+
+	long ticks = Machine.timer().getTime();
+	Lib.bytesFromInt(memory, paddr+0, (int) ticks);
+	Lib.bytesFromInt(memory, paddr+4, (int) (ticks >>> 32));
+
+	UserProcess process = currentProcess();
+	if (process != null)
+	    Lib.bytesFromInt(memory, paddr+8, process.pid);
+
+	Lib.bytesFromInt(memory, paddr+12, UserProcess.numProcesses);
+	Lib.bytesFromInt(memory, paddr+16, UserProcess.numSyscalls);
+	Lib.bytesFromInt(memory, paddr+20, UserProcess.numPageFaults);
     }
 
     /**
@@ -100,16 +182,385 @@ public class UserKernel extends ThreadedKernel {
 	KThread.currentThread().finish();
     }
 
+    /**
+     * Allocate a free page of physical memory, in constant time: the page is
+     * the one on top of the free stack. The caller holds the only reference
+     * to the page.
+     *
+     * @return	the physical page number, or <tt>-1</tt> if no page is free.
+     */
+    public static int allocatePage() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = -1;
+	if (numFreePages > 0) {
+	    ppn = freeStack[numFreePages-1];
+	    takeFreePage(ppn);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Allocate a run of physically contiguous free pages. The caller holds
+     * the only reference to each page. A single page comes from the free
+     * stack; a longer run is searched for in the bitmap, starting where the
+     * previous run ended and wrapping around to the start of memory, which
+     * takes time proportional to the number of physical pages at worst.
+     *
+     * @param	count	the number of pages to allocate.
+     * @return	the first physical page number of the run, or <tt>-1</tt> if
+     *		no run of <i>count</i> free pages exists.
+     */
+    public static int allocatePages(int count) {
+	Lib.assertTrue(count > 0);
+
+	if (count == 1)
+	    return allocatePage();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = -1;
+	if (count <= numFreePages) {
+	    ppn = findFreePages(nextPage, pageRefs.length, count);
+	    if (ppn == -1) {
+		ppn = findFreePages(0, Math.min(nextPage+count-1,
+						pageRefs.length), count);
+	    }
+	}
+
+	if (ppn != -1) {
+	    for (int i=ppn; i<ppn+count; i++)
+		takeFreePage(i);
+
+	    nextPage = (ppn+count) % pageRefs.length;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Take a free page out of the free stack and the bitmap, swapping the
+     * top of the stack into its place, and give the caller the only
+     * reference to it. Interrupts must be disabled.
+     */
+    private static void takeFreePage(int ppn) {
+	int index = freeStackIndex[ppn];
+	Lib.assertTrue(index != -1 && pageRefs[ppn] == 0);
+
+	int top = freeStack[--numFreePages];
+	freeStack[index] = top;
+	freeStackIndex[top] = index;
+	freeStackIndex[ppn] = -1;
+
+	usedPages.set(ppn);
+	pageRefs[ppn] = 1;
+    }
+
+    /**
+     * Return a page to the top of the free stack and clear its bit.
+     * Interrupts must be disabled.
+     */
+    private static void pushFreePage(int ppn) {
+	freeStack[numFreePages] = ppn;
+	freeStackIndex[ppn] = numFreePages++;
+	usedPages.clear(ppn);
+    }
+
+    /**
+     * Find the first run of <i>count</i> free pages that lies within the
+     * range of physical pages from <i>start</i> to <i>end</i>.
+     */
+    private static int findFreePages(int start, int end, int count) {
+	int ppn = usedPages.nextClearBit(start);
+	while (ppn+count <= end) {
+	    int used = usedPages.nextSetBit(ppn);
+	    if (used == -1 || used >= ppn+count)
+		return ppn;
+
+	    ppn = usedPages.nextClearBit(used);
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the number of physical pages that are not in use.
+     *
+     * @return	the number of free physical pages.
+     */
+    public static int getNumFreePages() {
+	return numFreePages;
+    }
+
+    /**
+     * Take another reference to an allocated physical page, so that it can
+     * be mapped by more than one process.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void sharePage(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(pageRefs[ppn] > 0);
+	pageRefs[ppn]++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether more than one reference to a physical page is held.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    public static boolean isPageShared(int ppn) {
+	return pageRefs[ppn] > 1;
+    }
+
+    /**
+     * Drop a reference to a physical page, returning the page to the free
+     * pool once no references remain.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void freePage(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(pageRefs[ppn] > 0);
+	if (--pageRefs[ppn] == 0)
+	    pushFreePage(ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Take a reference to the shared physical page holding the specified
+     * read-only executable page, allocating the page if no process has it
+     * yet. A newly allocated page is not loaded until
+     * <tt>loadTextPage()</tt> is called.
+     *
+     * @param	key	identifies the executable, section, and page.
+     * @return	the physical page number, or <tt>-1</tt> if no page is free.
+     */
+    public static int acquireTextPage(String key) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	TextPage page = textPages.get(key);
+	if (page == null) {
+	    int ppn = allocatePage();
+	    if (ppn == -1) {
+		Machine.interrupt().restore(intStatus);
+		return -1;
+	    }
+
+	    page = new TextPage(ppn);
+	    textPages.put(key, page);
+	}
+
+	page.refCount++;
+
+	Machine.interrupt().restore(intStatus);
+	return page.ppn;
+    }
+
+    /**
+     * Make sure the shared page with the specified key has been loaded from
+     * the executable. Only the first caller reads the page; any others wait
+     * for it to finish. The caller must hold a reference to the page.
+     *
+     * @param	key	identifies the executable, section, and page.
+     * @param	section	the section containing the page.
+     * @param	spn	the page number within the section.
+     */
+    public static void loadTextPage(String key, CoffSection section, int spn) {
+	TextPage page = textPages.get(key);
+	Lib.assertTrue(page != null && page.refCount > 0);
+
+	page.loadLock.acquire();
+	if (!page.loaded) {
+	    section.loadPage(spn, page.ppn);
+	    page.loaded = true;
+	}
+	page.loadLock.release();
+    }
+
+    /**
+     * Drop a reference taken by <tt>acquireTextPage()</tt>, freeing the
+     * physical page when the last process lets go of it.
+     *
+     * @param	key	identifies the executable, section, and page.
+     */
+    public static void releaseTextPage(String key) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	TextPage page = textPages.get(key);
+	Lib.assertTrue(page != null && page.refCount > 0);
+
+	if (--page.refCount == 0) {
+	    textPages.remove(key);
+	    freePage(page.ppn);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Block the current thread on the futex at the specified physical address,
+     * provided the word there still holds the expected value. The comparison
+     * and the enqueue happen with interrupts disabled, so a wakeup cannot be
+     * lost between them.
+     *
+     * @param	paddr		the physical address of the futex word.
+     * @param	expected	the value the word must hold for the thread to
+     *				block.
+     * @return	<tt>true</tt> if the thread blocked and was later woken, or
+     *		<tt>false</tt> if the word did not hold <i>expected</i>.
+     */
+    public static boolean futexWait(int paddr, int expected) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	byte[] memory = Machine.processor().getMemory();
+	if (Lib.bytesToInt(memory, paddr) != expected) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	Futex futex = futexes.get(paddr);
+	if (futex == null) {
+	    futex = new Futex();
+	    futexes.put(paddr, futex);
+	}
+
+	futex.numWaiters++;
+	futex.waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Wake up at most <i>count</i> threads blocked on the futex at the
+     * specified physical address.
+     *
+     * @param	paddr	the physical address of the futex word.
+     * @param	count	the maximum number of threads to wake.
+     * @return	the number of threads woken.
+     */
+    public static int futexWake(int paddr, int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int numWoken = 0;
+	Futex futex = futexes.get(paddr);
+	if (futex != null) {
+	    KThread thread;
+	    while (numWoken < count &&
+		   (thread = futex.waitQueue.nextThread()) != null) {
+		thread.ready();
+		numWoken++;
+	    }
+
+	    futex.numWaiters -= numWoken;
+	    if (futex.numWaiters == 0)
+		futexes.remove(paddr);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return numWoken;
+    }
+
+    /**
+     * Test whether any thread is blocked on a futex in the specified physical
+     * page. Such a page must stay where it is until its waiters are woken,
+     * since they are queued by physical address. Interrupts must be disabled.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if a thread is waiting on a futex in the page.
+     */
+    public static boolean hasFutexWaiters(int ppn) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (int paddr : futexes.keySet()) {
+	    if (paddr/Processor.pageSize == ppn)
+		return true;
+	}
+
+	return false;
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	UserProcess.printSyscallStats();
+
 	super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the cache of executables. */
+    public static CoffCache coffCache;
+
+    /** The number of executables the COFF cache may keep. */
+    private static final int maxCachedImages = 8;
+    /** The number of bytes of executable pages the COFF cache may keep. */
+    private static final int maxCachedBytes = 64*Processor.pageSize;
+
+    /** The physical page holding the kernel data page. */
+    private static int kernelPage;
+    /** The shared physical page of zeros, or <tt>-1</tt> until needed. */
+    private static int zeroPage = -1;
+
+    /** The physical pages in use, one bit per page. */
+    private static BitSet usedPages;
+    /** The free physical pages; the last is handed out first. */
+    private static int[] freeStack;
+    /** The index of each free page in <tt>freeStack</tt>, or <tt>-1</tt>. */
+    private static int[] freeStackIndex;
+    /** The number of pages in <tt>freeStack</tt>. */
+    private static int numFreePages = 0;
+    /** The page where the next search for free pages starts. */
+    private static int nextPage = 0;
+    /** The number of references held to each physical page. */
+    private static int[] pageRefs;
+
+    /** A physical page holding read-only executable data. */
+    private static class TextPage {
+	TextPage(int ppn) {
+	    this.ppn = ppn;
+	}
+
+	int ppn;
+	int refCount = 0;
+	boolean loaded = false;
+	Lock loadLock = new Lock();
+    }
+
+    /**
+     * Read-only executable pages in use by some process, keyed by
+     * executable, section, and page.
+     */
+    private static HashMap<String,TextPage> textPages =
+	new HashMap<String,TextPage>();
+
+    /**
+     * The threads blocked on a single futex word. A futex only exists while
+     * some thread is waiting on it.
+     */
+    private static class Futex {
+	int numWaiters = 0;
+	ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+    }
+
+    /** Futexes with waiting threads, keyed by physical address. */
+    private static HashMap<Integer,Futex> futexes =
+	new HashMap<Integer,Futex>();
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -5,6 +5,12 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,10 +29,14 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	boolean intStatus = Machine.interrupt().disable();
+	pid = nextPid++;
+	Machine.interrupt().restore(intStatus);
+
+	fileTable[0] = UserKernel.console.openForReading();
+	fileTable[1] = UserKernel.console.openForWriting();
+
+	registerSyscalls();
     }
     
     /**
@@ -52,7 +62,14 @@ public class UserProcess {
 	if (!load(name, args))
 	    return false;
 	
-	new UThread(this).setName(name).fork();
+	UThread thread = new UThread(this);
+	addThread(thread);
+
+	boolean intStatus = Machine.interrupt().disable();
+	numProcesses++;
+	Machine.interrupt().restore(intStatus);
+
+	thread.setName(name).fork();
 
 	return true;
     }
@@ -67,9 +84,98 @@ public class UserProcess {
     /**
      * Restore the state of this process after a context switch. Called by
      * <tt>UThread.restoreState()</tt>.
+     *
+     * <p>
+     * Once the process has called <tt>exit()</tt>, its remaining threads run
+     * with no address space, so that each traps into the kernel and finishes
+     * as soon as it next executes an instruction.
      */
     public void restoreState() {
-	Machine.processor().setPageTable(pageTable);
+	Machine.processor().setPageTable(exiting ? null : pageTable);
+	UserKernel.updateKernelPage();
+    }
+
+    /**
+     * Assign a thread identifier to the specified thread and make it
+     * joinable. Every thread running in this process must be added before it
+     * is forked.
+     *
+     * @param	thread	the new thread.
+     */
+    protected void addThread(UThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	thread.tid = nextTid++;
+	threads.put(thread.tid, thread);
+	numThreads++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Finish the current thread. The last thread to leave the process
+     * releases its address space, and the last process to finish terminates
+     * the kernel. Never returns.
+     *
+     * @param	status	the exit status of the current thread.
+     */
+    protected void finishThread(int status) {
+	UThread thread = (UThread) KThread.currentThread();
+	Lib.assertTrue(thread.process == this);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	thread.exitStatus = status;
+	if (thread.stackVPN != -1) {
+	    freeStackPages(thread.stackVPN, stackPages);
+	    stackSlots.clear((thread.stackVPN - numPages) / stackPages);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	joinLock.acquire();
+	thread.finished = true;
+	joinWait.wakeAll();
+	joinLock.release();
+
+	intStatus = Machine.interrupt().disable();
+	boolean lastThread = (--numThreads == 0);
+	Machine.interrupt().restore(intStatus);
+
+	if (lastThread) {
+	    Lib.debug(dbgProcess, "UserProcess exiting with status "
+		      + exitStatus);
+
+	    if (ioRing != null)
+		ioRing.close();
+
+	    for (int fd=0; fd<fileTable.length; fd++) {
+		if (fileTable[fd] != null)
+		    handleClose(fd);
+	    }
+
+	    unloadSections();
+	    Lib.assertTrue(numFrames == 0,
+			   "process " + pid + " leaked " + numFrames
+			   + " frames");
+
+	    // tell a parent blocked in join()
+	    Lock parentLock = (parent != null) ? parent.joinLock : joinLock;
+	    parentLock.acquire();
+	    finished = true;
+	    if (parent != null)
+		parent.joinWait.wakeAll();
+	    parentLock.release();
+
+	    intStatus = Machine.interrupt().disable();
+	    boolean lastProcess = (--numProcesses == 0);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (lastProcess)
+		Kernel.kernel.terminate();
+	}
+
+	KThread.finish();
+	Lib.assertNotReached();
     }
 
     /**
@@ -89,16 +195,78 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	byte[] memory = Machine.processor().getMemory();
+
+	// scan for the terminator in place, a page at a time; only a string
+	// that spans pages needs to be gathered into the scratch buffer
+	byte[] buffer = null;
+	String string = null;
+	int length = 0;
+	while (length <= maxLength) {
+	    int vpn = Processor.pageFromAddress(vaddr+length);
+	    TranslationEntry entry = getTranslation(vpn, false);
+	    if (entry == null)
+		break;
+
+	    // with interrupts disabled, the page cannot be evicted under us
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (!isAccessible(vpn, entry, false)) {
+		Machine.interrupt().restore(intStatus);
+		continue;
+	    }
+
+	    int paddr = entry.ppn*pageSize +
+		Processor.offsetFromAddress(vaddr+length);
+	    int span = Math.min(maxLength+1-length,
+				(entry.ppn+1)*pageSize - paddr);
+	    entry.used = true;
+
+	    int end = paddr;
+	    while (end < paddr+span && memory[end] != 0)
+		end++;
+
+	    if (end < paddr+span && length == 0) {
+		string = new String(memory, paddr, end-paddr);
+		Machine.interrupt().restore(intStatus);
+		break;
+	    }
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	    if (buffer == null)
+		buffer = takeStringBuffer(maxLength+1);
+	    System.arraycopy(memory, paddr, buffer, length, end-paddr);
+	    length += end-paddr;
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (end < paddr+span) {
+		string = new String(buffer, 0, length);
+		break;
+	    }
 	}
 
-	return null;
+	if (buffer != null)
+	    stringBuffer = buffer;
+
+	return string;
+    }
+
+    /**
+     * Take ownership of this process's scratch buffer for
+     * <tt>readVirtualMemoryString()</tt>, growing it if necessary. The caller
+     * returns it by storing it back in <tt>stringBuffer</tt>. If another
+     * thread of this process holds the buffer, a new one is allocated.
+     *
+     * @param	size	the minimum size of the buffer.
+     * @return	a buffer of at least <i>size</i> bytes.
+     */
+    private byte[] takeStringBuffer(int size) {
+	byte[] buffer = stringBuffer;
+	stringBuffer = null;
+
+	if (buffer == null || buffer.length < size)
+	    buffer = new byte[size];
+
+	return buffer;
     }
 
     /**
@@ -129,18 +297,7 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
 				 int length) {
-	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
-
-	return amount;
+	return copyVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -172,20 +329,126 @@ public class UserProcess {
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 				  int length) {
+	return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Transfer data between this process's virtual memory and the specified
+     * array, one page table walk per page. Runs of virtual pages that are
+     * also physically contiguous are moved with a single
+     * <tt>System.arraycopy()</tt>. The used bit of every page touched is set,
+     * and the dirty bit of every page written. The transfer stops at the
+     * first page that cannot be accessed.
+     *
+     * <p>
+     * Each copy is made with interrupts disabled, after checking that its
+     * pages are still resident, since a page brought in by
+     * <tt>getTranslation()</tt> may already have been evicted again.
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	data	the array to transfer to or from.
+     * @param	offset	the first byte of the array to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	writing	<tt>true</tt> to copy from the array to virtual memory,
+     *			<tt>false</tt> to copy from virtual memory to the
+     *			array.
+     * @return	the number of bytes successfully transferred.
+     */
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length, boolean writing) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = 0;
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr+amount);
+	    TranslationEntry entry = getTranslation(vpn, writing);
+	    if (entry == null)
+		break;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (!isAccessible(vpn, entry, writing)) {
+		Machine.interrupt().restore(intStatus);
+		continue;
+	    }
+
+	    int paddr = entry.ppn*pageSize +
+		Processor.offsetFromAddress(vaddr+amount);
+	    int span = Math.min(length-amount, (entry.ppn+1)*pageSize - paddr);
+	    entry.used = true;
+	    if (writing)
+		entry.dirty = true;
+
+	    // extend the span across physically contiguous resident pages
+	    while (amount+span < length && vpn+1 < pageTable.length) {
+		TranslationEntry next = pageTable[vpn+1];
+		if (next == null || !isAccessible(vpn+1, next, writing) ||
+		    next.ppn != entry.ppn+1)
+		    break;
+
+		vpn++;
+		entry = next;
+		span += Math.min(length-amount-span, pageSize);
+		entry.used = true;
+		if (writing)
+		    entry.dirty = true;
+	    }
+
+	    if (writing)
+		System.arraycopy(data, offset+amount, memory, paddr, span);
+	    else
+		System.arraycopy(memory, paddr, data, offset+amount, span);
+
+	    Machine.interrupt().restore(intStatus);
+
+	    amount += span;
+	}
 
 	return amount;
     }
 
+    /**
+     * Test whether a translation returned by <tt>getTranslation()</tt> can
+     * still be used. Interrupts must be disabled, so that the answer stays
+     * true until they are restored.
+     *
+     * @param	vpn	the virtual page.
+     * @param	entry	the page's translation entry.
+     * @param	writing	<tt>true</tt> if the page will be written.
+     * @return	<tt>true</tt> if the page is still mapped and resident.
+     */
+    private boolean isAccessible(int vpn, TranslationEntry entry,
+				 boolean writing) {
+	return pageTable[vpn] == entry && entry.valid &&
+	    !(writing && entry.readOnly);
+    }
+
+    /**
+     * Return the translation entry for a kernel access to the specified
+     * virtual page of this process, or <tt>null</tt> if the access is not
+     * allowed. Subclasses that map pages lazily override this to bring the
+     * page in first.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	writing	<tt>true</tt> if the kernel will write the page.
+     * @return	the translation entry for the page, or <tt>null</tt> if the
+     *		page is not mapped or is read-only and <i>writing</i> is set.
+     */
+    protected TranslationEntry getTranslation(int vpn, boolean writing) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || (!entry.valid && !handlePageFault(vpn)) ||
+	    (writing && entry.readOnly && !handleCopyOnWrite(vpn)))
+	    return null;
+
+	Lib.assertTrue(entry.ppn >= 0 &&
+		       entry.ppn < Machine.processor().getNumPhysPages());
+	return entry;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -205,8 +468,11 @@ public class UserProcess {
 	    return false;
 	}
 
+	executableName = name;
+	executableLength = executable.length();
+
 	try {
-	    coff = new Coff(executable);
+	    coff = UserKernel.coffCache.open(executable);
 	}
 	catch (EOFException e) {
 	    executable.close();
@@ -247,14 +513,18 @@ public class UserProcess {
 	numPages += stackPages;
 	initialSP = numPages*pageSize;
 
-	// and finally reserve 1 page for arguments
+	// then reserve 1 page for arguments
+	numPages++;
+
+	// and finally 1 page for the kernel data page
+	kernelPageVPN = numPages;
 	numPages++;
 
 	if (!loadSections())
 	    return false;
 
-	// store arguments in last page
-	int entryOffset = (numPages-1)*pageSize;
+	// store arguments in the page below the kernel data page
+	int entryOffset = (kernelPageVPN-1)*pageSize;
 	int stringOffset = entryOffset + args.length*4;
 
 	this.argc = args.length;
@@ -275,20 +545,20 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Allocates memory for this process, and prepares the COFF sections to be
+     * loaded into memory. Section pages start out invalid, and are read from
+     * the executable by <tt>handlePageFault()</tt> the first time they are
+     * touched. Pages of read-only sections are shared with every other
+     * process running the same executable. If this returns successfully, the
+     * process will definitely be run (this is the last step in process
+     * initialization that can fail).
      *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > Machine.processor().getNumPhysPages()) {
-	    coff.close();
-	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
-	    return false;
-	}
+	pageTable = new TranslationEntry[numPages];
 
-	// load sections
+	// map sections, to be loaded on demand
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    
@@ -298,152 +568,2018 @@ public class UserProcess {
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		// uninitialized data starts out on the zero page
+		if (!section.isReadOnly() && !section.isInitialzed()) {
+		    if (!mapZeroPage(vpn)) {
+			unloadSections();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		    }
+		    continue;
+		}
+
+		int ppn;
+		if (section.isReadOnly())
+		    ppn = acquireTextFrame(s, i);
+		else
+		    ppn = allocateFrames(1);
+
+		if (ppn == -1) {
+		    unloadSections();
+		    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+		    return false;
+		}
+
+		pageTable[vpn] = new TranslationEntry(vpn, ppn, false,
+						      section.isReadOnly(),
+						      false, false);
+	    }
+	}
+
+	// the stack and argument pages start out on the zero page
+	for (int vpn=kernelPageVPN-stackPages-1; vpn<kernelPageVPN; vpn++) {
+	    if (!mapZeroPage(vpn)) {
+		unloadSections();
+		Lib.debug(dbgProcess, "\tinsufficient physical memory");
+		return false;
 	    }
 	}
+
+	// the kernel data page is shared by everyone, and read-only
+	shareFrame(UserKernel.getKernelPage());
+	pageTable[kernelPageVPN] =
+	    new TranslationEntry(kernelPageVPN, UserKernel.getKernelPage(),
+				 true, true, false, false);
 	
 	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Bring in a page of this process that is mapped but not yet resident,
+     * by loading it from the section of the executable that contains it.
+     * Called on a page fault, and when the kernel touches such a page on the
+     * process's behalf.
+     *
+     * @param	vpn	the virtual page to bring in.
+     * @return	<tt>true</tt> if the page is now valid, or <tt>false</tt> if
+     *		<i>vpn</i> is not part of this process's address space.
      */
-    protected void unloadSections() {
-    }    
+    protected boolean handlePageFault(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null)
+	    return false;
+
+	numPageFaults++;
+
+	pageLock.acquire();
+
+	// another thread may have loaded the page while we waited
+	TranslationEntry entry = pageTable[vpn];
+	Mapping mapping = findMapping(vpn);
+	if (!entry.valid && mapping != null) {
+	    if (!loadMappedPage(mapping, entry)) {
+		pageLock.release();
+		return false;
+	    }
+	}
+	else if (!entry.valid) {
+	    int s = findSection(vpn);
+	    if (s == -1) {
+		pageLock.release();
+		return false;
+	    }
+
+	    CoffSection section = coff.getSection(s);
+	    int spn = vpn - section.getFirstVPN();
+
+	    Lib.debug(dbgProcess, "\tloading page " + vpn + " of "
+		      + section.getName());
+
+	    if (section.isReadOnly())
+		UserKernel.loadTextPage(textPageKey(s, spn), section, spn);
+	    else
+		section.loadPage(spn, entry.ppn);
+	    entry.valid = true;
+	}
+
+	pageLock.release();
+	return true;
+    }
 
     /**
-     * Initialize the processor's registers in preparation for running the
-     * program loaded into this process. Set the PC register to point at the
-     * start function, set the stack pointer register to point at the top of
-     * the stack, set the A0 and A1 registers to argc and argv, respectively,
-     * and initialize all other registers to 0.
+     * Read a page of a memory-mapped file into a newly allocated frame. The
+     * part of the page beyond the end of the file is zero-filled.
+     *
+     * @param	mapping	the mapping containing the page.
+     * @param	entry	the page's translation entry.
+     * @return	<tt>true</tt> if the page was loaded.
      */
-    public void initRegisters() {
-	Processor processor = Machine.processor();
+    private boolean loadMappedPage(Mapping mapping, TranslationEntry entry) {
+	int ppn = allocateFrames(1);
+	if (ppn == -1)
+	    return false;
 
-	// by default, everything's 0
-	for (int i=0; i<processor.numUserRegisters; i++)
-	    processor.writeRegister(i, 0);
+	readMappedPage(mapping, entry.vpn, ppn);
 
-	// initialize PC and SP according
-	processor.writeRegister(Processor.regPC, initialPC);
-	processor.writeRegister(Processor.regSP, initialSP);
+	entry.ppn = ppn;
+	entry.dirty = false;
+	entry.valid = true;
+	return true;
+    }
 
-	// initialize the first two argument registers to argc and argv
-	processor.writeRegister(Processor.regA0, argc);
-	processor.writeRegister(Processor.regA1, argv);
+    /**
+     * Read a page of a memory-mapped file into the specified frame. The part
+     * of the page beyond the end of the file is zero-filled.
+     *
+     * @param	mapping	the mapping containing the page.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the frame to read into.
+     */
+    protected void readMappedPage(Mapping mapping, int vpn, int ppn) {
+	int pos = (vpn - mapping.firstVPN) * pageSize;
+	int amount = Math.min(pageSize, mapping.length - pos);
+
+	byte[] memory = Machine.processor().getMemory();
+	int read = mapping.file.read(pos, memory, ppn*pageSize, amount);
+	if (read < 0)
+	    read = 0;
+	Arrays.fill(memory, ppn*pageSize + read, (ppn+1)*pageSize, (byte) 0);
     }
 
     /**
-     * Handle the halt() system call. 
+     * Write a page of a memory-mapped file back from the specified frame,
+     * without extending the file.
+     *
+     * @param	mapping	the mapping containing the page.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the frame holding the page.
      */
-    private int handleHalt() {
+    protected void writeMappedPage(Mapping mapping, int vpn, int ppn) {
+	int pos = (vpn - mapping.firstVPN) * pageSize;
+	int amount = Math.min(pageSize, mapping.length - pos);
 
-	Machine.halt();
-	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
-	return 0;
+	byte[] memory = Machine.processor().getMemory();
+	mapping.file.write(pos, memory, ppn*pageSize, amount);
     }
 
+    /**
+     * Return the memory-mapped file region containing the specified virtual
+     * page.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the mapping containing <i>vpn</i>, or <tt>null</tt> if
+     *		<i>vpn</i> is not part of a mapped file.
+     */
+    protected Mapping findMapping(int vpn) {
+	for (Mapping mapping : mappings) {
+	    if (vpn >= mapping.firstVPN &&
+		vpn < mapping.firstVPN + mapping.numPages)
+		return mapping;
+	}
 
-    private static final int
-        syscallHalt = 0,
-	syscallExit = 1,
-	syscallExec = 2,
-	syscallJoin = 3,
-	syscallCreate = 4,
-	syscallOpen = 5,
-	syscallRead = 6,
-	syscallWrite = 7,
-	syscallClose = 8,
-	syscallUnlink = 9;
+	return null;
+    }
 
     /**
-     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
-     * <i>syscall</i> argument identifies which syscall the user executed:
+     * Write back the dirty pages of a memory-mapped file, release its frames,
+     * and remove it from this process's address space.
      *
-     * <table>
-     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
-     * <tr><td>0</td><td><tt>void halt();</tt></td></tr>
-     * <tr><td>1</td><td><tt>void exit(int status);</tt></td></tr>
-     * <tr><td>2</td><td><tt>int  exec(char *name, int argc, char **argv);
-     * 								</tt></td></tr>
-     * <tr><td>3</td><td><tt>int  join(int pid, int *status);</tt></td></tr>
-     * <tr><td>4</td><td><tt>int  creat(char *name);</tt></td></tr>
-     * <tr><td>5</td><td><tt>int  open(char *name);</tt></td></tr>
-     * <tr><td>6</td><td><tt>int  read(int fd, char *buffer, int size);
-     *								</tt></td></tr>
-     * <tr><td>7</td><td><tt>int  write(int fd, char *buffer, int size);
-     *								</tt></td></tr>
-     * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
-     * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
-     * </table>
-     * 
-     * @param	syscall	the syscall number.
-     * @param	a0	the first syscall argument.
-     * @param	a1	the second syscall argument.
-     * @param	a2	the third syscall argument.
-     * @param	a3	the fourth syscall argument.
-     * @return	the value to be returned to the user.
+     * @param	mapping	the mapping to remove.
      */
-    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-	switch (syscall) {
-	case syscallHalt:
-	    return handleHalt();
+    protected void unmap(Mapping mapping) {
+	pageLock.acquire();
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<mapping.numPages; i++) {
+	    int vpn = mapping.firstVPN + i;
+	    TranslationEntry entry = pageTable[vpn];
 
+	    if (entry.valid) {
+		if (entry.dirty)
+		    writeMappedPage(mapping, vpn, entry.ppn);
 
-	default:
-	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-	    Lib.assertNotReached("Unknown system call!");
+		freeFrame(entry.ppn);
+	    }
+
+	    pageTable[vpn] = null;
 	}
-	return 0;
+
+	mappings.remove(mapping);
+
+	pageLock.release();
     }
 
     /**
-     * Handle a user exception. Called by
-     * <tt>UserKernel.exceptionHandler()</tt>. The
-     * <i>cause</i> argument identifies which exception occurred; see the
-     * <tt>Processor.exceptionZZZ</tt> constants.
+     * Return the number of the section of the executable that contains the
+     * specified virtual page.
      *
-     * @param	cause	the user exception that occurred.
+     * @param	vpn	the virtual page.
+     * @return	the section containing <i>vpn</i>, or <tt>-1</tt> if no
+     *		section does.
      */
-    public void handleException(int cause) {
-	Processor processor = Machine.processor();
-
-	switch (cause) {
-	case Processor.exceptionSyscall:
-	    int result = handleSyscall(processor.readRegister(Processor.regV0),
-				       processor.readRegister(Processor.regA0),
-				       processor.readRegister(Processor.regA1),
-				       processor.readRegister(Processor.regA2),
-				       processor.readRegister(Processor.regA3)
-				       );
-	    processor.writeRegister(Processor.regV0, result);
-	    processor.advancePC();
-	    break;				       
-				       
-	default:
-	    Lib.debug(dbgProcess, "Unexpected exception: " +
-		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+    protected int findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN()+section.getLength())
+		return s;
 	}
+
+	return -1;
     }
 
-    /** The program being run by this process. */
-    protected Coff coff;
+    /**
+     * Return the key under which the kernel shares the specified page of a
+     * read-only section of this process's executable. Processes running an
+     * executable with the same name and length share its read-only pages.
+     *
+     * @param	s	the section number.
+     * @param	spn	the page number within the section.
+     * @return	the key of the shared page.
+     */
+    protected String textPageKey(int s, int spn) {
+	return executableName + ":" + executableLength + ":" + s + ":" + spn;
+    }
 
-    /** This process's page table. */
-    protected TranslationEntry[] pageTable;
-    /** The number of contiguous pages occupied by the program. */
-    protected int numPages;
+    /**
+     * Fill the specified physical page with zeros.
+     *
+     * @param	ppn	the physical page to clear.
+     */
+    protected static void zeroPage(int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+    }
+
+    /**
+     * Adjust the count of frame references this process holds. Every method
+     * that gives this process a frame, or takes one away, counts it here,
+     * including those of subclasses that manage frames of their own.
+     *
+     * @param	delta	the number of references gained, or lost if negative.
+     */
+    protected void countFrames(int delta) {
+	numFrames += delta;
+	Lib.assertTrue(numFrames >= 0);
+    }
+
+    /**
+     * Allocate a run of physically contiguous frames for this process, and
+     * count them in <tt>numFrames</tt>. Every frame this process refers to
+     * is obtained through this method, <tt>shareFrame()</tt> or
+     * <tt>acquireTextFrame()</tt>, and given up through <tt>freeFrame()</tt>
+     * or <tt>releaseTextFrame()</tt>.
+     *
+     * @param	count	the number of frames to allocate.
+     * @return	the first physical page number of the run, or <tt>-1</tt> if
+     *		no such run is free.
+     */
+    protected int allocateFrames(int count) {
+	int ppn = UserKernel.allocatePages(count);
+	if (ppn != -1)
+	    countFrames(count);
+
+	return ppn;
+    }
+
+    /**
+     * Take another reference to a frame allocated by some process.
+     *
+     * @param	ppn	the physical page number.
+     */
+    protected void shareFrame(int ppn) {
+	UserKernel.sharePage(ppn);
+	countFrames(1);
+    }
+
+    /**
+     * Take a reference to the shared frame holding the specified page of a
+     * read-only section.
+     *
+     * @param	s	the section number.
+     * @param	spn	the page number within the section.
+     * @return	the physical page number, or <tt>-1</tt> if no frame was
+     *		free.
+     */
+    protected int acquireTextFrame(int s, int spn) {
+	int ppn = UserKernel.acquireTextPage(textPageKey(s, spn));
+	if (ppn != -1)
+	    countFrames(1);
+
+	return ppn;
+    }
+
+    /**
+     * Drop a reference to a frame.
+     *
+     * @param	ppn	the physical page number.
+     */
+    protected void freeFrame(int ppn) {
+	UserKernel.freePage(ppn);
+	countFrames(-1);
+    }
+
+    /**
+     * Drop a reference taken by <tt>acquireTextFrame()</tt>.
+     *
+     * @param	s	the section number.
+     * @param	spn	the page number within the section.
+     */
+    protected void releaseTextFrame(int s, int spn) {
+	UserKernel.releaseTextPage(textPageKey(s, spn));
+	countFrames(-1);
+    }
+
+    /**
+     * Release any resources allocated by <tt>loadSections()</tt>.
+     */
+    protected void unloadSections() {
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn] == null)
+		continue;
+
+	    int s = findSection(vpn);
+	    if (s != -1 && coff.getSection(s).isReadOnly()) {
+		int spn = vpn - coff.getSection(s).getFirstVPN();
+		releaseTextFrame(s, spn);
+	    }
+	    else {
+		freeFrame(pageTable[vpn].ppn);
+	    }
+
+	    pageTable[vpn] = null;
+	}
+
+	releaseCoff();
+    }    
+
+    /**
+     * Give up this process's use of its executable, closing it if no process
+     * forked from the same image is still using it.
+     */
+    protected void releaseCoff() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer users = coffUsers.get(coff);
+	if (users == null) {
+	    coff.close();
+	}
+	else if (users == 2) {
+	    coffUsers.remove(coff);
+	}
+	else {
+	    coffUsers.put(coff, users-1);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Make this new process a copy of the specified process. Shares the
+     * parent's executable, copies its layout, and then copies its pages
+     * with <tt>forkPages()</tt>.
+     *
+     * @param	parent	the process to copy.
+     * @return	<tt>true</tt> if the address space was copied.
+     */
+    protected boolean forkAddressSpace(UserProcess parent) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	coff = parent.coff;
+	Integer users = coffUsers.get(coff);
+	coffUsers.put(coff, users == null ? 2 : users+1);
+
+	executableName = parent.executableName;
+	executableLength = parent.executableLength;
+	numPages = parent.numPages;
+	kernelPageVPN = parent.kernelPageVPN;
+	initialPC = parent.initialPC;
+	initialSP = parent.initialSP;
+	argc = parent.argc;
+	argv = parent.argv;
+	stackSlots = (BitSet) parent.stackSlots.clone();
+
+	Machine.interrupt().restore(intStatus);
+
+	if (!forkPages(parent)) {
+	    unloadSections();
+	    return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Give this new process a copy of every page of the specified process,
+     * sharing all of its resident pages copy-on-write. Pages of read-only
+     * sections stay shared for good; private pages are marked read-only in
+     * both processes and copied by <tt>handleCopyOnWrite()</tt> when either
+     * first writes them. A page with threads blocked in <tt>futex_wait()</tt>
+     * is copied for the child at once instead, since futexes are keyed by
+     * frame and the parent must keep the frame its waiters are queued on.
+     * Pages the parent has not yet loaded get a frame of their own, to be
+     * loaded on demand as usual.
+     *
+     * @param	parent	the process to copy.
+     * @return	<tt>true</tt> if the pages were copied. On failure, the pages
+     *		copied so far are left in the page table, to be released by
+     *		<tt>unloadSections()</tt>.
+     */
+    protected boolean forkPages(UserProcess parent) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	pageTable = new TranslationEntry[parent.pageTable.length];
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = parent.pageTable[vpn];
+	    if (entry == null || parent.findMapping(vpn) != null)
+		continue;
+
+	    int ppn;
+	    int s = findSection(vpn);
+	    if (s != -1 && coff.getSection(s).isReadOnly()) {
+		int spn = vpn - coff.getSection(s).getFirstVPN();
+		ppn = acquireTextFrame(s, spn);
+	    }
+	    else if (vpn == kernelPageVPN) {
+		shareFrame(entry.ppn);
+		ppn = entry.ppn;
+	    }
+	    else if (entry.valid && !entry.readOnly &&
+		     UserKernel.hasFutexWaiters(entry.ppn)) {
+		ppn = allocateFrames(1);
+		if (ppn != -1) {
+		    byte[] memory = Machine.processor().getMemory();
+		    System.arraycopy(memory, entry.ppn*pageSize,
+				     memory, ppn*pageSize, pageSize);
+		}
+	    }
+	    else if (entry.valid) {
+		shareFrame(entry.ppn);
+		ppn = entry.ppn;
+		entry.readOnly = true;
+		parent.copyOnWrite.set(vpn);
+		copyOnWrite.set(vpn);
+	    }
+	    else {
+		ppn = allocateFrames(1);
+	    }
+
+	    if (ppn == -1) {
+		Machine.interrupt().restore(intStatus);
+		return false;
+	    }
+
+	    pageTable[vpn] = new TranslationEntry(vpn, ppn, entry.valid,
+						  entry.readOnly, false, false);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Give the specified copy-on-write page a private copy of its frame, so
+     * that it can be written. If no other process shares the frame any more,
+     * the frame itself becomes private.
+     *
+     * @param	vpn	the virtual page to make writable.
+     * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt>
+     *		if it is not a copy-on-write page or no memory was available.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!copyOnWrite.get(vpn)) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+	if (UserKernel.isPageShared(entry.ppn)) {
+	    int ppn = allocateFrames(1);
+	    if (ppn == -1) {
+		Machine.interrupt().restore(intStatus);
+		return false;
+	    }
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, entry.ppn*pageSize,
+			     memory, ppn*pageSize, pageSize);
+
+	    freeFrame(entry.ppn);
+	    entry.ppn = ppn;
+	}
+
+	entry.readOnly = false;
+	copyOnWrite.clear(vpn);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Map <i>count</i> zero-filled pages of stack starting at virtual page
+     * <i>vpn</i>, for a thread created by <tt>thread_create()</tt>.
+     *
+     * @param	vpn	the first virtual page of the stack.
+     * @param	count	the number of pages in the stack.
+     * @return	<tt>true</tt> if the pages were successfully mapped.
+     */
+    protected boolean allocateStackPages(int vpn, int count) {
+	for (int i=vpn; i<vpn+count; i++) {
+	    if (!mapZeroPage(i)) {
+		freeStackPages(vpn, i-vpn);
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Map a page that starts out as zeros to the kernel's shared zero page,
+     * read-only and copy-on-write, so that it is only given a frame of its
+     * own by <tt>handleCopyOnWrite()</tt> when it is first written.
+     *
+     * @param	vpn	the virtual page to map.
+     * @return	<tt>true</tt> if the page was mapped, or <tt>false</tt> if
+     *		there was no zero page.
+     */
+    private boolean mapZeroPage(int vpn) {
+	int ppn = UserKernel.getZeroPage();
+	if (ppn == -1)
+	    return false;
+
+	shareFrame(ppn);
+	copyOnWrite.set(vpn);
+	mapPage(new TranslationEntry(vpn, ppn, true, true, false, false));
+	return true;
+    }
+
+    /**
+     * Release the pages mapped by <tt>allocateStackPages()</tt>.
+     *
+     * @param	vpn	the first virtual page of the stack.
+     * @param	count	the number of pages in the stack.
+     */
+    protected void freeStackPages(int vpn, int count) {
+	for (int i=vpn; i<vpn+count; i++) {
+	    freeFrame(pageTable[i].ppn);
+	    copyOnWrite.clear(i);
+	    pageTable[i] = null;
+	}
+    }
+
+    /**
+     * Test whether a range of virtual pages is free for a new mapping.
+     *
+     * @param	vpn	the first virtual page of the range.
+     * @param	count	the number of pages in the range.
+     * @return	<tt>true</tt> if no page in the range is mapped.
+     */
+    protected boolean isUnmapped(int vpn, int count) {
+	for (int i=vpn; i<vpn+count && i<pageTable.length; i++) {
+	    if (pageTable[i] != null)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Install the specified translation in this process's page table,
+     * growing the page table if it does not yet cover the entry's virtual
+     * page.
+     *
+     * @param	entry	the translation to install.
+     */
+    protected void mapPage(TranslationEntry entry) {
+	if (entry.vpn >= pageTable.length) {
+	    TranslationEntry[] newPageTable = new TranslationEntry[entry.vpn+1];
+	    System.arraycopy(pageTable, 0, newPageTable, 0, pageTable.length);
+	    pageTable = newPageTable;
+
+	    // the processor is still using the old page table
+	    if (UserKernel.currentProcess() == this)
+		restoreState();
+	}
+
+	pageTable[entry.vpn] = entry;
+    }
+
+    /**
+     * Initialize the processor's registers in preparation for running the
+     * program loaded into this process. Set the PC register to point at the
+     * start function, set the stack pointer register to point at the top of
+     * the stack, set the A0 and A1 registers to argc and argv, respectively,
+     * and initialize all other registers to 0.
+     */
+    public void initRegisters() {
+	Processor processor = Machine.processor();
+
+	// by default, everything's 0
+	for (int i=0; i<processor.numUserRegisters; i++)
+	    processor.writeRegister(i, 0);
+
+	// initialize PC and SP according
+	processor.writeRegister(Processor.regPC, initialPC);
+	processor.writeRegister(Processor.regSP, initialSP);
+
+	// initialize the first two argument registers to argc and argv
+	processor.writeRegister(Processor.regA0, argc);
+	processor.writeRegister(Processor.regA1, argv);
+    }
+
+    /**
+     * Handle the halt() system call. 
+     */
+    private int handleHalt() {
+
+	Kernel.kernel.terminate();
+	
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
+	return 0;
+    }
+
+    /**
+     * Handle the exit() system call. Terminates every thread in this process;
+     * the calling thread finishes immediately, and the others finish as soon
+     * as they next enter the kernel or run user code. Threads blocked in the
+     * kernel are woken first, so that they return and finish too.
+     */
+    private int handleExit(int status) {
+	exitStatus = status;
+	exiting = true;
+
+	wakeBlockedThreads();
+
+	finishThread(status);
+	return 0;
+    }
+
+    /**
+     * Wake every other thread of this exiting process that is blocked in the
+     * kernel: in futex_wait(), in thread_join() or join(), on a pipe, or in
+     * io_enter(). Each of these waits gives up once <tt>exiting</tt> is set,
+     * so the threads return from their syscalls and finish.
+     */
+    private void wakeBlockedThreads() {
+	Lib.assertTrue(exiting);
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int paddr : futexWaiters.values())
+	    UserKernel.futexWake(paddr, Integer.MAX_VALUE);
+	Machine.interrupt().restore(intStatus);
+
+	joinLock.acquire();
+	joinWait.wakeAll();
+	joinLock.release();
+
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    OpenFile file = fileTable[fd];
+	    if (file instanceof Pipe.Endpoint)
+		((Pipe.Endpoint) file).wakeWaiters();
+	}
+
+	if (ioRing != null)
+	    ioRing.wakeWaiters();
+    }
+
+    /**
+     * Test whether this process has called <tt>exit()</tt>, so that its
+     * threads should give up any wait in the kernel.
+     *
+     * @return	<tt>true</tt> if the process is exiting.
+     */
+    public boolean isExiting() {
+	return exiting;
+    }
+
+    /**
+     * Handle the fork() system call. Creates a child process whose address
+     * space is a copy-on-write copy of this one, running a copy of the calling
+     * thread. The child sees fork() return <tt>0</tt>.
+     *
+     * @return	the child's process ID, or <tt>-1</tt> if the child could not
+     *		be created.
+     */
+    private int handleFork() {
+	UserProcess child = newUserProcess();
+	if (!child.forkAddressSpace(this))
+	    return -1;
+
+	// the child shares the pipes of its parent, at the same descriptors
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] instanceof Pipe.Endpoint) {
+		if (child.fileTable[fd] != null)
+		    child.fileTable[fd].close();
+
+		child.fileTable[fd] =
+		    ((Pipe.Endpoint) fileTable[fd]).duplicate();
+	    }
+	}
+
+	Processor processor = Machine.processor();
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    registers[i] = processor.readRegister(i);
+
+	// resume the child just after the syscall, returning 0
+	registers[Processor.regV0] = 0;
+	registers[Processor.regPC] = registers[Processor.regNextPC];
+	registers[Processor.regNextPC] += 4;
+
+	UThread thread = new UThread(child);
+	thread.setUserRegisters(registers);
+	child.addThread(thread);
+
+	child.parent = this;
+
+	boolean intStatus = Machine.interrupt().disable();
+	children.put(child.pid, child);
+	numProcesses++;
+	Machine.interrupt().restore(intStatus);
+
+	thread.setName(executableName + "." + child.pid).fork();
+
+	return child.pid;
+    }
+
+    /**
+     * Handle the join() system call. Waits for the specified child of this
+     * process to exit, and then disowns it.
+     *
+     * @param	pid		the child to wait for.
+     * @param	statusAddr	where to store the child's exit status, or
+     *				<tt>0</tt>.
+     * @return	<tt>1</tt> on success, or <tt>-1</tt> if <i>pid</i> is not a
+     *		child of this process.
+     */
+    private int handleJoin(int pid, int statusAddr) {
+	boolean intStatus = Machine.interrupt().disable();
+	UserProcess child = children.remove(pid);
+	Machine.interrupt().restore(intStatus);
+
+	if (child == null)
+	    return -1;
+
+	joinLock.acquire();
+	while (!child.finished && !exiting)
+	    joinWait.sleep();
+	boolean joined = child.finished;
+	joinLock.release();
+
+	// a join cut short by exit() leaves the child to finish on its own
+	if (!joined)
+	    return -1;
+
+	if (statusAddr != 0) {
+	    byte[] status = Lib.bytesFromInt(child.exitStatus);
+	    if (writeVirtualMemory(statusAddr, status) != status.length)
+		return -1;
+	}
+
+	return 1;
+    }
+
+    /**
+     * Handle the creat() system call.
+     */
+    private int handleCreate(int nameAddr) {
+	return openFile(nameAddr, true);
+    }
+
+    /**
+     * Handle the open() system call.
+     */
+    private int handleOpen(int nameAddr) {
+	return openFile(nameAddr, false);
+    }
+
+    /**
+     * Open the file named by the string at <i>nameAddr</i> and give it the
+     * lowest free file descriptor.
+     *
+     * @param	nameAddr	the address of the file name.
+     * @param	create		<tt>true</tt> to create the file if it does not
+     *				exist.
+     * @return	the new file descriptor, or <tt>-1</tt> on error.
+     */
+    private int openFile(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+	if (file == null)
+	    return -1;
+
+	int fd = addFile(file);
+	if (fd == -1)
+	    file.close();
+
+	return fd;
+    }
+
+    /**
+     * Give the specified open file the lowest free file descriptor.
+     *
+     * @param	file	the open file.
+     * @return	the new file descriptor, or <tt>-1</tt> if the file table is
+     *		full.
+     */
+    protected int addFile(OpenFile file) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] == null) {
+		fileTable[fd] = file;
+		Machine.interrupt().restore(intStatus);
+		return fd;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return -1;
+    }
+
+    /**
+     * Return the open file with the specified file descriptor.
+     *
+     * @param	fd	the file descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is not in use.
+     */
+    protected OpenFile getFile(int fd) {
+	if (fd < 0 || fd >= fileTable.length)
+	    return null;
+
+	return fileTable[fd];
+    }
+
+    /**
+     * Handle the read() system call.
+     */
+    private int handleRead(int fd, int bufferAddr, int count) {
+	return transferFile(fd, -1, new int[] { bufferAddr },
+			    new int[] { count }, false);
+    }
+
+    /**
+     * Handle the write() system call.
+     */
+    private int handleWrite(int fd, int bufferAddr, int count) {
+	return transferFile(fd, -1, new int[] { bufferAddr },
+			    new int[] { count }, true);
+    }
+
+    /**
+     * Handle the pread() system call. Reads from the specified position of a
+     * file without moving its file pointer.
+     */
+    private int handlePread(int fd, int bufferAddr, int count, int pos) {
+	if (pos < 0)
+	    return -1;
+
+	return transferFile(fd, pos, new int[] { bufferAddr },
+			    new int[] { count }, false);
+    }
+
+    /**
+     * Handle the pwrite() system call. Writes to the specified position of a
+     * file without moving its file pointer.
+     */
+    private int handlePwrite(int fd, int bufferAddr, int count, int pos) {
+	if (pos < 0)
+	    return -1;
+
+	return transferFile(fd, pos, new int[] { bufferAddr },
+			    new int[] { count }, true);
+    }
+
+    /**
+     * Handle the readv() and writev() system calls. Reads the array of
+     * <tt>iovcnt</tt> <tt>struct iovec</tt> entries (a buffer address
+     * followed by a length) at <i>iovAddr</i> with a single copy, and then
+     * performs the whole transfer as one file operation where possible.
+     *
+     * @param	fd	the file descriptor.
+     * @param	iovAddr	the address of the iovec array.
+     * @param	iovcnt	the number of entries in the array.
+     * @param	writing	<tt>true</tt> for writev(), <tt>false</tt> for
+     *			readv().
+     * @return	the number of bytes transferred, or <tt>-1</tt> on error.
+     */
+    private int handleVectorIO(int fd, int iovAddr, int iovcnt,
+			       boolean writing) {
+	if (iovcnt < 0 || iovcnt > maxIovecs)
+	    return -1;
+
+	byte[] iov = new byte[iovcnt*8];
+	if (readVirtualMemory(iovAddr, iov) != iov.length)
+	    return -1;
+
+	int[] bases = new int[iovcnt];
+	int[] lengths = new int[iovcnt];
+	for (int i=0; i<iovcnt; i++) {
+	    bases[i] = Lib.bytesToInt(iov, i*8);
+	    lengths[i] = Lib.bytesToInt(iov, i*8+4);
+	}
+
+	return transferFile(fd, -1, bases, lengths, writing);
+    }
+
+    /**
+     * Transfer data between an open file and a list of buffers in this
+     * process's virtual memory. The buffers are gathered into (or scattered
+     * from) a kernel buffer of up to <tt>maxTransfer</tt> bytes, so that a
+     * transfer of that size costs one file operation however many buffers it
+     * spans. Each buffer is copied with a single page-walking transfer. If
+     * an error occurs after some bytes were transferred, the transfer stops
+     * there and returns the number of bytes transferred.
+     *
+     * @param	fd	the file descriptor.
+     * @param	pos	the file position to transfer at, or <tt>-1</tt> to use
+     *			and advance the file pointer.
+     * @param	bases	the virtual addresses of the buffers.
+     * @param	lengths	the lengths of the buffers.
+     * @param	writing	<tt>true</tt> to write the file, <tt>false</tt> to read
+     *			it.
+     * @return	the number of bytes transferred, or <tt>-1</tt> on error.
+     */
+    protected int transferFile(int fd, int pos, int[] bases, int[] lengths,
+			       boolean writing) {
+	OpenFile file = getFile(fd);
+	if (file == null || isMapped(fd) ||
+	    (pos != -1 && file.getFileSystem() == null))
+	    return -1;
+
+	long total = 0;
+	for (int i=0; i<lengths.length; i++) {
+	    if (lengths[i] < 0)
+		return -1;
+	    total += lengths[i];
+	}
+	if (total > Integer.MAX_VALUE)
+	    return -1;
+
+	if (file instanceof Pipe.Endpoint)
+	    return transferPipe((Pipe.Endpoint) file, bases, lengths, writing);
+
+	byte[] buffer = new byte[(int) Math.min(total, maxTransfer)];
+
+	int done = 0;
+	int iov = 0, iovOffset = 0;
+	while (done < total) {
+	    int chunk = (int) Math.min(buffer.length, total-done);
+	    int amount;
+
+	    if (writing) {
+		// gather the next chunk from the buffers
+		for (int filled=0; filled<chunk; ) {
+		    int piece = Math.min(chunk-filled, lengths[iov]-iovOffset);
+		    if (readVirtualMemory(bases[iov]+iovOffset, buffer, filled,
+					  piece) != piece)
+			return (done == 0) ? -1 : done;
+
+		    filled += piece;
+		    iovOffset += piece;
+		    if (iovOffset == lengths[iov]) {
+			iov++;
+			iovOffset = 0;
+		    }
+		}
+
+		if (pos == -1)
+		    amount = file.write(buffer, 0, chunk);
+		else
+		    amount = file.write(pos+done, buffer, 0, chunk);
+
+		if (amount < 0)
+		    return (done == 0) ? -1 : done;
+	    }
+	    else {
+		if (pos == -1)
+		    amount = file.read(buffer, 0, chunk);
+		else
+		    amount = file.read(pos+done, buffer, 0, chunk);
+
+		if (amount < 0)
+		    return (done == 0) ? -1 : done;
+
+		// scatter what was read into the buffers
+		for (int emptied=0; emptied<amount; ) {
+		    int piece = Math.min(amount-emptied,
+					 lengths[iov]-iovOffset);
+		    int copied = writeVirtualMemory(bases[iov]+iovOffset,
+						    buffer, emptied, piece);
+		    if (copied != piece) {
+			// the bytes already taken from the file are kept
+			done += emptied + copied;
+			return (done == 0) ? -1 : done;
+		    }
+
+		    emptied += piece;
+		    iovOffset += piece;
+		    if (iovOffset == lengths[iov]) {
+			iov++;
+			iovOffset = 0;
+		    }
+		}
+	    }
+
+	    done += amount;
+	    if (amount < chunk)
+		break;
+	}
+
+	return done;
+    }
+
+    /**
+     * Handle the io_setup() system call. Registers the submission and
+     * completion rings for asynchronous I/O and starts the kernel threads
+     * that serve them. A process may register only one pair of rings.
+     */
+    private int handleIOSetup(int sqAddr, int cqAddr, int entries) {
+	if (ioRing != null || !IORing.isValidSize(entries))
+	    return -1;
+
+	ioRing = new IORing(this, sqAddr, cqAddr, entries);
+	return 0;
+    }
+
+    /**
+     * Handle the io_enter() system call. Submits the new entries of the
+     * submission ring, then waits until at least <i>minComplete</i>
+     * completions are available (or nothing is left in progress).
+     */
+    private int handleIOEnter(int minComplete) {
+	if (ioRing == null)
+	    return -1;
+
+	int submitted = ioRing.submit();
+	if (submitted == -1 || ioRing.waitForCompletions(minComplete) == -1)
+	    return -1;
+
+	return submitted;
+    }
+
+    /**
+     * Handle the frames() system call. Returns the number of physical frames
+     * held by this process (if <i>pid</i> is <tt>0</tt>) or by one of its
+     * children that has not yet been joined. Frames shared with other
+     * processes are counted in each of them.
+     */
+    private int handleFrames(int pid) {
+	if (pid == 0)
+	    return numFrames;
+
+	UserProcess child = children.get(pid);
+	if (child == null)
+	    return -1;
+
+	return child.numFrames;
+    }
+
+    /**
+     * Transfer data between a pipe and a list of buffers in this process's
+     * virtual memory. The pipe copies each buffer directly to or from its
+     * ring. A read waits only for the first buffer, and stops at the first
+     * buffer it cannot fill.
+     *
+     * @param	pipe	the pipe endpoint.
+     * @param	bases	the virtual addresses of the buffers.
+     * @param	lengths	the lengths of the buffers.
+     * @param	writing	<tt>true</tt> to write to the pipe, <tt>false</tt> to
+     *			read from it.
+     * @return	the number of bytes transferred, or <tt>-1</tt> on error.
+     */
+    private int transferPipe(Pipe.Endpoint pipe, int[] bases, int[] lengths,
+			     boolean writing) {
+	int done = 0;
+	for (int i=0; i<bases.length; i++) {
+	    int amount;
+	    if (writing)
+		amount = pipe.write(this, bases[i], lengths[i]);
+	    else
+		amount = pipe.read(this, bases[i], lengths[i], i == 0);
+
+	    if (amount == -1)
+		return (done == 0) ? -1 : done;
+
+	    done += amount;
+	    if (amount < lengths[i])
+		break;
+	}
+
+	return done;
+    }
+
+    /**
+     * Handle the pipe() system call. Creates a pipe, and stores the file
+     * descriptors of its read and write ends in the two-element array at
+     * <i>fdsAddr</i>.
+     */
+    private int handlePipe(int fdsAddr) {
+	Pipe pipe = new Pipe();
+
+	int readFD = addFile(pipe.getReadEnd());
+	int writeFD = addFile(pipe.getWriteEnd());
+
+	byte[] fds = new byte[8];
+	Lib.bytesFromInt(fds, 0, readFD);
+	Lib.bytesFromInt(fds, 4, writeFD);
+
+	if (readFD == -1 || writeFD == -1 ||
+	    writeVirtualMemory(fdsAddr, fds) != fds.length) {
+	    if (readFD != -1)
+		handleClose(readFD);
+	    else
+		pipe.getReadEnd().close();
+
+	    if (writeFD != -1)
+		handleClose(writeFD);
+	    else
+		pipe.getWriteEnd().close();
+
+	    return -1;
+	}
+
+	return 0;
+    }
+
+    /**
+     * Handle the kernel_page() system call. Returns the virtual address of
+     * the read-only kernel data page kept up to date by
+     * <tt>UserKernel.updateKernelPage()</tt>.
+     */
+    private int handleKernelPage() {
+	return kernelPageVPN*pageSize;
+    }
+
+    /**
+     * Handle the close() system call. Any mappings of the file are flushed
+     * and removed first.
+     */
+    private int handleClose(int fd) {
+	OpenFile file = getFile(fd);
+	if (file == null)
+	    return -1;
+
+	for (Mapping mapping : new ArrayList<Mapping>(mappings)) {
+	    if (mapping.fd == fd)
+		unmap(mapping);
+	}
+
+	fileTable[fd] = null;
+	file.close();
+	return 0;
+    }
+
+    /**
+     * Handle the mmap() system call. Reserves enough virtual pages starting
+     * at <i>vaddr</i> to cover the file; each page is read from the file the
+     * first time it is touched, and written back when the mapping is removed
+     * if it was modified.
+     *
+     * @param	fd	the file descriptor of the file to map.
+     * @param	vaddr	the page-aligned address to map the file at.
+     * @return	the length of the file, or <tt>-1</tt> on error.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	OpenFile file = getFile(fd);
+	if (file == null || file.getFileSystem() == null || isMapped(fd) ||
+	    Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	int length = file.length();
+	if (length < 0)
+	    return -1;
+
+	Mapping mapping = new Mapping();
+	mapping.fd = fd;
+	mapping.file = file;
+	mapping.length = length;
+	mapping.firstVPN = Processor.pageFromAddress(vaddr);
+	mapping.numPages = Lib.divRoundUp(length, pageSize);
+
+	if (mapping.firstVPN + mapping.numPages > Processor.maxPages)
+	    return -1;
+
+	pageLock.acquire();
+
+	if (!isUnmapped(mapping.firstVPN, mapping.numPages)) {
+	    pageLock.release();
+	    return -1;
+	}
+
+	for (int i=0; i<mapping.numPages; i++) {
+	    int vpn = mapping.firstVPN + i;
+	    mapPage(new TranslationEntry(vpn, -1, false, false, false, false));
+	}
+	mappings.add(mapping);
+
+	pageLock.release();
+	return length;
+    }
+
+    /**
+     * Handle the munmap() system call. Writes back the modified pages of the
+     * file mapped at <i>vaddr</i> and removes the mapping.
+     *
+     * @param	vaddr	the address the file was mapped at.
+     * @return	<tt>0</tt> on success, or <tt>-1</tt> if no file is mapped at
+     *		<i>vaddr</i>.
+     */
+    private int handleMunmap(int vaddr) {
+	Mapping mapping = findMapping(Processor.pageFromAddress(vaddr));
+	if (mapping == null ||
+	    mapping.firstVPN*pageSize != vaddr)
+	    return -1;
+
+	unmap(mapping);
+	return 0;
+    }
+
+    /**
+     * Test whether the file with the specified descriptor is mapped into
+     * memory. A mapped file cannot be read or written through its descriptor.
+     *
+     * @param	fd	the file descriptor.
+     * @return	<tt>true</tt> if the file is mapped.
+     */
+    protected boolean isMapped(int fd) {
+	for (Mapping mapping : mappings) {
+	    if (mapping.fd == fd)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Handle the thread_create() system call. Starts a new thread in this
+     * process, sharing its address space, with its own stack carved out above
+     * the argument page. The new thread starts at <i>start</i>, the
+     * <tt>__thread_start</tt> routine in <tt>start.s</tt>, with <i>entry</i>
+     * and <i>arg</i> in its first two argument registers; that routine calls
+     * the function, and calls <tt>thread_exit()</tt> if it returns.
+     *
+     * @param	entry	the address of the function to run.
+     * @param	arg	the argument to pass to the function.
+     * @param	start	the address of the routine that calls the function.
+     * @return	the identifier of the new thread, or <tt>-1</tt> if it could
+     *		not be created.
+     */
+    private int handleThreadCreate(int entry, int arg, int start) {
+	boolean intStatus = Machine.interrupt().disable();
+	// skip over regions taken by mapped files
+	int slot = stackSlots.nextClearBit(0);
+	while (!isUnmapped(numPages + slot*stackPages, stackPages))
+	    slot = stackSlots.nextClearBit(slot+1);
+	stackSlots.set(slot);
+	Machine.interrupt().restore(intStatus);
+
+	int stackVPN = numPages + slot*stackPages;
+	if (!allocateStackPages(stackVPN, stackPages)) {
+	    intStatus = Machine.interrupt().disable();
+	    stackSlots.clear(slot);
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	int[] registers = new int[Processor.numUserRegisters];
+	registers[Processor.regPC] = start;
+	// leave room for the callee to save its argument registers
+	registers[Processor.regSP] = (stackVPN+stackPages)*pageSize - 16;
+	registers[Processor.regA0] = entry;
+	registers[Processor.regA1] = arg;
+
+	UThread thread = new UThread(this);
+	thread.stackVPN = stackVPN;
+	thread.setUserRegisters(registers);
+	addThread(thread);
+
+	thread.setName(KThread.currentThread().getName() + "." + thread.tid);
+	thread.fork();
+
+	return thread.tid;
+    }
+
+    /**
+     * Handle the thread_join() system call. Waits for the specified thread of
+     * this process to exit, and then disowns it.
+     *
+     * @param	tid		the thread to wait for.
+     * @param	statusAddr	where to store the thread's exit status, or
+     *				<tt>0</tt>.
+     * @return	<tt>0</tt> on success, or <tt>-1</tt> if <i>tid</i> is not a
+     *		joinable thread of this process.
+     */
+    private int handleThreadJoin(int tid, int statusAddr) {
+	boolean intStatus = Machine.interrupt().disable();
+	UThread thread = threads.get(tid);
+	if (thread == null || thread == KThread.currentThread()) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+	threads.remove(tid);
+	Machine.interrupt().restore(intStatus);
+
+	joinLock.acquire();
+	while (!thread.finished && !exiting)
+	    joinWait.sleep();
+	boolean joined = thread.finished;
+	joinLock.release();
+
+	if (!joined)
+	    return -1;
+
+	if (statusAddr != 0) {
+	    byte[] status = Lib.bytesFromInt(thread.exitStatus);
+	    if (writeVirtualMemory(statusAddr, status) != status.length)
+		return -1;
+	}
+
+	return 0;
+    }
+
+    /**
+     * Handle the thread_exit() system call. Finishes the calling thread; the
+     * process exits when its last thread does.
+     */
+    private int handleThreadExit(int status) {
+	exitStatus = status;
+
+	finishThread(status);
+	return 0;
+    }
+
+    /**
+     * Handle the futex_wait() system call. If the word at <i>vaddr</i> still
+     * holds <i>expected</i>, block the calling thread until another thread
+     * calls futex_wake() on the same word.
+     *
+     * @param	vaddr		the address of the futex word.
+     * @param	expected	the value the caller last saw in the word.
+     * @return	<tt>0</tt> if the thread was woken, or <tt>-1</tt> if the word
+     *		no longer held <i>expected</i> or <i>vaddr</i> is invalid.
+     */
+    private int handleFutexWait(int vaddr, int expected) {
+	while (true) {
+	    int paddr = futexAddress(vaddr);
+	    if (paddr == -1)
+		return -1;
+
+	    // the page may have moved while futexAddress() blocked
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (exiting) {
+		Machine.interrupt().restore(intStatus);
+		return -1;
+	    }
+	    if (isFutexAddress(vaddr, paddr)) {
+		// recorded so that exit() can wake this thread
+		UThread thread = (UThread) KThread.currentThread();
+		futexWaiters.put(thread, paddr);
+		boolean woken = UserKernel.futexWait(paddr, expected);
+		futexWaiters.remove(thread);
+
+		Machine.interrupt().restore(intStatus);
+		return (woken && !exiting) ? 0 : -1;
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    /**
+     * Handle the futex_wake() system call. Wake up at most <i>count</i>
+     * threads blocked in futex_wait() on the word at <i>vaddr</i>.
+     *
+     * @param	vaddr	the address of the futex word.
+     * @param	count	the maximum number of threads to wake.
+     * @return	the number of threads woken, or <tt>-1</tt> if <i>vaddr</i> is
+     *		invalid.
+     */
+    private int handleFutexWake(int vaddr, int count) {
+	if (count < 0)
+	    return -1;
+
+	while (true) {
+	    int paddr = futexAddress(vaddr);
+	    if (paddr == -1)
+		return -1;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (isFutexAddress(vaddr, paddr)) {
+		int numWoken = UserKernel.futexWake(paddr, count);
+		Machine.interrupt().restore(intStatus);
+		return numWoken;
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    /**
+     * Return the physical address of the futex word at <i>vaddr</i>. Futexes
+     * are keyed by physical address, so that processes sharing a page also
+     * share the futexes in it.
+     *
+     * @param	vaddr	the virtual address of the futex word.
+     * @return	the physical address of the word, or <tt>-1</tt> if
+     *		<i>vaddr</i> is misaligned or not mapped.
+     */
+    private int futexAddress(int vaddr) {
+	if ((vaddr & 3) != 0)
+	    return -1;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	TranslationEntry entry = getTranslation(vpn, false);
+	if (entry == null)
+	    return -1;
+
+	// a page sharing its frame until written would change key when written
+	if (entry.readOnly) {
+	    TranslationEntry writable = getTranslation(vpn, true);
+	    if (writable != null)
+		entry = writable;
+	}
+
+	return entry.ppn*pageSize + Processor.offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Test whether the futex word at <i>vaddr</i> is still at the physical
+     * address returned by <tt>futexAddress()</tt>. Finding the address may
+     * block, to bring the page in, and the page may be evicted or copied
+     * before the caller runs again. So the caller checks with interrupts
+     * disabled, and uses the address in the same critical section. Once a
+     * thread waits on a futex, its page stays in place.
+     *
+     * @param	vaddr	the virtual address of the futex word.
+     * @param	paddr	the physical address found for it.
+     * @return	<tt>true</tt> if <i>vaddr</i> still maps to <i>paddr</i>.
+     */
+    private boolean isFutexAddress(int vaddr, int paddr) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+	return entry != null && entry.valid &&
+	    entry.ppn == paddr/pageSize;
+    }
+
+
+    private static final int
+        syscallHalt = 0,
+	syscallExit = 1,
+	syscallExec = 2,
+	syscallJoin = 3,
+	syscallCreate = 4,
+	syscallOpen = 5,
+	syscallRead = 6,
+	syscallWrite = 7,
+	syscallClose = 8,
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallFutexWait = 13,
+	syscallFutexWake = 14,
+	syscallThreadCreate = 15,
+	syscallThreadJoin = 16,
+	syscallThreadExit = 17,
+	syscallFork = 18,
+	syscallMunmap = 19,
+	syscallReadv = 20,
+	syscallWritev = 21,
+	syscallPread = 22,
+	syscallPwrite = 23,
+	syscallIOSetup = 24,
+	syscallIOEnter = 25,
+	syscallFrames = 26,
+	syscallPipe = 27,
+	syscallKernelPage = 28;
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed, and
+     * selects its handler from the syscall table. The calls and the kernel
+     * ticks spent in each handler are recorded in its table entry for
+     * <tt>printSyscallStats()</tt>. The syscalls registered by this class
+     * are:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>0</td><td><tt>void halt();</tt></td></tr>
+     * <tr><td>1</td><td><tt>void exit(int status);</tt></td></tr>
+     * <tr><td>2</td><td><tt>int  exec(char *name, int argc, char **argv);
+     * 								</tt></td></tr>
+     * <tr><td>3</td><td><tt>int  join(int pid, int *status);</tt></td></tr>
+     * <tr><td>4</td><td><tt>int  creat(char *name);</tt></td></tr>
+     * <tr><td>5</td><td><tt>int  open(char *name);</tt></td></tr>
+     * <tr><td>6</td><td><tt>int  read(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>7</td><td><tt>int  write(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
+     * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *addr, int expected);
+     *								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *addr, int count);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  thread_create(int (*func)(void *),
+     *					    void *arg);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  thread_join(int tid, int *status);
+     *								</tt></td></tr>
+     * <tr><td>17</td><td><tt>void thread_exit(int status);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *					    int iovcnt);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *					     int iovcnt);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  pread(int fd, char *buffer, int size,
+     *					    int offset);</tt></td></tr>
+     * <tr><td>23</td><td><tt>int  pwrite(int fd, char *buffer, int size,
+     *					     int offset);</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  io_setup(struct io_ring *sq,
+     *					      struct io_ring *cq,
+     *					      int entries);</tt></td></tr>
+     * <tr><td>25</td><td><tt>int  io_enter(int minComplete);</tt></td></tr>
+     * <tr><td>26</td><td><tt>int  frames(int pid);</tt></td></tr>
+     * <tr><td>27</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>28</td><td><tt>struct kernel_page *kernel_page();</tt></td></tr>
+     * </table>
+     * 
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	Syscall entry = null;
+	if (syscall >= 0 && syscall < maxSyscalls)
+	    entry = syscallTable[syscall];
+
+	if (entry == null) {
+	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
+	    Lib.assertNotReached("Unknown system call!");
+	}
+
+	SyscallStats stats = entry.stats;
+	stats.count++;
+	numSyscalls++;
+
+	long startTime = Machine.timer().getTime();
+	int result = entry.handler.handle(a0, a1, a2, a3);
+	long latency = Machine.timer().getTime() - startTime;
+
+	stats.ticks += latency;
+	stats.latencies[latencyBucket(latency)]++;
+
+	return result;
+    }
+
+    /**
+     * Register the handlers of the syscalls implemented by this class.
+     * Called by the constructor; subclasses add their own syscalls (or
+     * replace these) by calling <tt>registerSyscall()</tt> from their
+     * constructors.
+     */
+    private void registerSyscalls() {
+	registerSyscall(syscallHalt, "halt", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleHalt();
+		}
+	    });
+	registerSyscall(syscallExit, "exit", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleExit(a0);
+		}
+	    });
+	registerSyscall(syscallJoin, "join", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleJoin(a0, a1);
+		}
+	    });
+	registerSyscall(syscallCreate, "creat", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleCreate(a0);
+		}
+	    });
+	registerSyscall(syscallOpen, "open", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleOpen(a0);
+		}
+	    });
+	registerSyscall(syscallRead, "read", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleRead(a0, a1, a2);
+		}
+	    });
+	registerSyscall(syscallWrite, "write", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleWrite(a0, a1, a2);
+		}
+	    });
+	registerSyscall(syscallClose, "close", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleClose(a0);
+		}
+	    });
+	registerSyscall(syscallMmap, "mmap", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleMmap(a0, a1);
+		}
+	    });
+	registerSyscall(syscallFutexWait, "futex_wait", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleFutexWait(a0, a1);
+		}
+	    });
+	registerSyscall(syscallFutexWake, "futex_wake", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleFutexWake(a0, a1);
+		}
+	    });
+	registerSyscall(syscallThreadCreate, "thread_create",
+			new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleThreadCreate(a0, a1, a2);
+		}
+	    });
+	registerSyscall(syscallThreadJoin, "thread_join", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleThreadJoin(a0, a1);
+		}
+	    });
+	registerSyscall(syscallThreadExit, "thread_exit", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleThreadExit(a0);
+		}
+	    });
+	registerSyscall(syscallFork, "fork", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleFork();
+		}
+	    });
+	registerSyscall(syscallMunmap, "munmap", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleMunmap(a0);
+		}
+	    });
+	registerSyscall(syscallReadv, "readv", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleVectorIO(a0, a1, a2, false);
+		}
+	    });
+	registerSyscall(syscallWritev, "writev", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleVectorIO(a0, a1, a2, true);
+		}
+	    });
+	registerSyscall(syscallPread, "pread", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handlePread(a0, a1, a2, a3);
+		}
+	    });
+	registerSyscall(syscallPwrite, "pwrite", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handlePwrite(a0, a1, a2, a3);
+		}
+	    });
+	registerSyscall(syscallIOSetup, "io_setup", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleIOSetup(a0, a1, a2);
+		}
+	    });
+	registerSyscall(syscallIOEnter, "io_enter", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleIOEnter(a0);
+		}
+	    });
+	registerSyscall(syscallFrames, "frames", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleFrames(a0);
+		}
+	    });
+	registerSyscall(syscallPipe, "pipe", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handlePipe(a0);
+		}
+	    });
+	registerSyscall(syscallKernelPage, "kernel_page", new SyscallHandler() {
+		public int handle(int a0, int a1, int a2, int a3) {
+		    return handleKernelPage();
+		}
+	    });
+    }
+
+    /**
+     * Install the handler for a syscall in this process's syscall table,
+     * replacing any previous handler for the same number. Every process that
+     * installs a handler of the same class shares its statistics, so a
+     * subclass that replaces a handler counts its calls separately.
+     *
+     * @param	syscall	the syscall number.
+     * @param	name	the name of the syscall, used in statistics.
+     * @param	handler	the handler to call for the syscall.
+     */
+    protected void registerSyscall(int syscall, String name,
+				   SyscallHandler handler) {
+	Lib.assertTrue(syscall >= 0 && syscall < maxSyscalls);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	SyscallStats stats = syscallStats.get(handler.getClass());
+	if (stats == null) {
+	    stats = new SyscallStats(name);
+	    syscallStats.put(handler.getClass(), stats);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	syscallTable[syscall] = new Syscall(handler, stats);
+    }
+
+    /**
+     * The handler of a single syscall. Receives the four syscall arguments
+     * and returns the value to be returned to the user.
+     */
+    protected interface SyscallHandler {
+	public int handle(int a0, int a1, int a2, int a3);
+    }
+
+    /** An entry in a process's syscall table. */
+    private static class Syscall {
+	Syscall(SyscallHandler handler, SyscallStats stats) {
+	    this.handler = handler;
+	    this.stats = stats;
+	}
+
+	SyscallHandler handler;
+	SyscallStats stats;
+    }
+
+    /**
+     * The name of a syscall handler, and the calls made to it by all
+     * processes.
+     */
+    private static class SyscallStats {
+	SyscallStats(String name) {
+	    this.name = name;
+	}
+
+	String name;
+	long count = 0;
+	/** The kernel ticks taken by the calls that returned. */
+	long ticks = 0;
+	/** The latencies of the calls that returned, by bucket. */
+	long[] latencies = new long[numLatencyBuckets];
+    }
+
+    /**
+     * Return the latency histogram bucket for the specified number of ticks.
+     * Bucket <i>b</i> counts latencies of at least <tt>2^(b-1)</tt> and less
+     * than <tt>2^b</tt> ticks; the last bucket also counts anything longer.
+     */
+    private static int latencyBucket(long ticks) {
+	int bucket = 64 - Long.numberOfLeadingZeros(ticks);
+	return Math.min(bucket, numLatencyBuckets-1);
+    }
+
+    /**
+     * Print the number of calls to each syscall handler made so far by all
+     * processes, the kernel ticks they took in total, and a histogram of
+     * their latencies. Calls that never return, such as <tt>exit()</tt>, are
+     * only counted.
+     */
+    public static void printSyscallStats() {
+	for (SyscallStats stats : syscallStats.values()) {
+	    if (stats.count == 0)
+		continue;
+
+	    long returned = 0;
+	    for (int b=0; b<numLatencyBuckets; b++)
+		returned += stats.latencies[b];
+
+	    System.out.print("Syscall " + stats.name
+			     + ": calls " + stats.count);
+	    if (returned == 0) {
+		System.out.println();
+		continue;
+	    }
+
+	    System.out.println(", ticks " + stats.ticks
+			       + ", mean " + stats.ticks/returned);
+
+	    StringBuffer histogram = new StringBuffer("\tlatency");
+	    for (int b=0; b<numLatencyBuckets; b++) {
+		if (stats.latencies[b] > 0) {
+		    histogram.append(" <" + (1L << b) + ":"
+				     + stats.latencies[b]);
+		}
+	    }
+	    System.out.println(histogram);
+	}
+    }
+
+    /**
+     * Handle a user exception. Called by
+     * <tt>UserKernel.exceptionHandler()</tt>. The
+     * <i>cause</i> argument identifies which exception occurred; see the
+     * <tt>Processor.exceptionZZZ</tt> constants.
+     *
+     * @param	cause	the user exception that occurred.
+     */
+    public void handleException(int cause) {
+	Processor processor = Machine.processor();
+
+	if (exiting)
+	    finishThread(exitStatus);
+
+	switch (cause) {
+	case Processor.exceptionSyscall:
+	    int result = handleSyscall(processor.readRegister(Processor.regV0),
+				       processor.readRegister(Processor.regA0),
+				       processor.readRegister(Processor.regA1),
+				       processor.readRegister(Processor.regA2),
+				       processor.readRegister(Processor.regA3)
+				       );
+	    processor.writeRegister(Processor.regV0, result);
+	    processor.advancePC();
+
+	    // a syscall cut short by exit() returns to finish the thread
+	    if (exiting)
+		finishThread(exitStatus);
+	    break;				       
+
+	case Processor.exceptionPageFault:
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    if (handlePageFault(Processor.pageFromAddress(vaddr)))
+		break;
+
+	    Lib.debug(dbgProcess, "Invalid address 0x"
+		      + Lib.toHexString(vaddr));
+	    Lib.assertNotReached("Unexpected exception");
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    vaddr = processor.readRegister(Processor.regBadVAddr);
+	    if (handleCopyOnWrite(Processor.pageFromAddress(vaddr)))
+		break;
+
+	    Lib.debug(dbgProcess, "Write to read-only address 0x"
+		      + Lib.toHexString(vaddr));
+	    Lib.assertNotReached("Unexpected exception");
+	    break;
+				       
+	default:
+	    Lib.debug(dbgProcess, "Unexpected exception: " +
+		      Processor.exceptionNames[cause]);
+	    Lib.assertNotReached("Unexpected exception");
+	}
+    }
+
+    /** The program being run by this process. */
+    protected Coff coff;
+
+    /** This process's page table. */
+    protected TranslationEntry[] pageTable;
+    /** The number of contiguous pages occupied by the program. */
+    protected int numPages;
+    /** The virtual page where the kernel data page is mapped. */
+    protected int kernelPageVPN;
+
+    /** The name of the file containing the executable. */
+    protected String executableName;
+    /** The length of the executable file when it was loaded. */
+    protected int executableLength;
+
+    /** The number of pages in the program's stack. */
+    protected final int stackPages = 8;
+    
+    private int initialPC, initialSP;
+    private int argc, argv;
+
+    /** Serializes loading pages into this process. */
+    private Lock pageLock = new Lock();
+
+    /** Scratch space for strings that span pages. */
+    private byte[] stringBuffer = null;
+
+    /** This process's open files, indexed by file descriptor. */
+    protected OpenFile[] fileTable = new OpenFile[maxFiles];
+
+    /** A file mapped into this process's address space by <tt>mmap()</tt>. */
+    protected static class Mapping {
+	/** The descriptor the file was mapped through. */
+	public int fd;
+	/** The mapped file. */
+	public OpenFile file;
+	/** The length of the file when it was mapped. */
+	public int length;
+	/** The first virtual page of the mapping. */
+	public int firstVPN;
+	/** The number of virtual pages in the mapping. */
+	public int numPages;
+    }
+
+    /** The files mapped into this process's address space. */
+    protected LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+
+    /** Private pages shared copy-on-write with a forked process. */
+    protected BitSet copyOnWrite = new BitSet();
+
+    /** The number of entries in the syscall table. */
+    protected static final int maxSyscalls = 64;
+    /** The number of buckets in each syscall latency histogram. */
+    private static final int numLatencyBuckets = 24;
+
+    /** The number of syscalls made by all processes. */
+    protected static int numSyscalls = 0;
+    /** The number of page faults handled for all processes. */
+    protected static int numPageFaults = 0;
+
+    /** The handlers of the syscalls this process supports. */
+    private Syscall[] syscallTable = new Syscall[maxSyscalls];
+
+    /**
+     * The statistics of every syscall handler registered so far, keyed by
+     * the handler's class, in the order they were first registered.
+     */
+    private static LinkedHashMap<Class<?>,SyscallStats> syscallStats =
+	new LinkedHashMap<Class<?>,SyscallStats>();
+
+    /** The number of references this process holds to physical frames. */
+    private int numFrames = 0;
+
+    /** The asynchronous I/O rings registered by this process, if any. */
+    protected IORing ioRing = null;
+
+    /** This process's process ID. */
+    protected int pid;
+    /** Children that can still be joined, keyed by process ID. */
+    private HashMap<Integer,UserProcess> children =
+	new HashMap<Integer,UserProcess>();
+    /** The process that forked this one, or <tt>null</tt>. */
+    private UserProcess parent = null;
+    /** Set once this process has finished, with its parent's lock held. */
+    private boolean finished = false;
+
+    /**
+     * Held while testing or setting whether a thread of this process, or a
+     * child, has finished.
+     */
+    private Lock joinLock = new Lock();
+    /**
+     * Signalled when a thread of this process or a child finishes, and when
+     * the process exits, for <tt>thread_join()</tt> and <tt>join()</tt>.
+     */
+    private Condition2 joinWait = new Condition2(joinLock);
+    /** The threads blocked in futex_wait(), and their futex addresses. */
+    private HashMap<UThread,Integer> futexWaiters =
+	new HashMap<UThread,Integer>();
+
+    /** Set once <tt>exit()</tt> has been called. */
+    protected boolean exiting = false;
+    /** The exit status of this process. */
+    protected int exitStatus = 0;
+
+    /** Threads that can still be joined, keyed by thread identifier. */
+    private HashMap<Integer,UThread> threads = new HashMap<Integer,UThread>();
+    /** The number of threads in this process that have not finished. */
+    private int numThreads = 0;
+    private int nextTid = 0;
+    /**
+     * The stack regions in use by threads other than the first, each
+     * <tt>stackPages</tt> long, starting just above the argument page.
+     */
+    private BitSet stackSlots = new BitSet();
+
+    /** The number of processes that have not finished. */
+    protected static int numProcesses = 0;
+    private static int nextPid = 1;
+
+    /**
+     * The number of processes sharing each executable that is in use by more
+     * than one process, after a fork.
+     */
+    private static HashMap<Coff,Integer> coffUsers =
+	new HashMap<Coff,Integer>();
+	
+    /** The maximum number of files a process can have open. */
+    protected static final int maxFiles = 16;
+    /** The maximum length of a file name, not including the terminator. */
+    protected static final int maxNameLength = 256;
+    /** The maximum number of buffers in a <tt>readv()/writev()</tt>. */
+    protected static final int maxIovecs = 16;
+    /** The largest amount of data moved by a single file operation. */
+    protected static final int maxTransfer = 16*Processor.pageSize;
 
-    /** The number of pages in the program's stack. */
-    protected final int stackPages = 8;
-    
-    private int initialPC, initialSP;
-    private int argc, argv;
-	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 }
@@ -0,0 +1,49 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock algorithm. A hand sweeps the frames in order, clearing the used
+ * bit of each referenced page it passes, and stops at the first page whose
+ * used bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+    }
+
+    public void pageLoaded(int frame) {
+    }
+
+    public int chooseVictim() {
+	int numFrames = frames.getNumFrames();
+
+	// after one revolution every used bit is clear
+	for (int i=0; i<2*numFrames; i++) {
+	    int frame = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (!frames.isEvictable(frame))
+		continue;
+
+	    if (!frames.isUsed(frame))
+		return frame;
+
+	    frames.clearUsed(frame);
+	}
+
+	return -1;
+    }
+
+    private Frames frames;
+    private int hand = 0;
+}
@@ -0,0 +1,131 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A hash table mapping a process ID and virtual page number to the physical
+ * page holding that page, for every resident user page. It allows a TLB miss
+ * on a resident page to be resolved with a single lookup.
+ *
+ * <p>
+ * The table uses open addressing with linear probing over parallel arrays
+ * of primitives, so that no object is allocated per entry. Since there can
+ * never be more entries than physical pages, the table is sized once, at
+ * least twice as large, and never fills up. Removal shifts later entries of
+ * a probe sequence back rather than leaving tombstones, so lookups never
+ * slow down as pages come and go.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new, empty inverted page table.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	int capacity = 1;
+	while (capacity < 2*numPhysPages)
+	    capacity *= 2;
+
+	mask = capacity-1;
+	pids = new int[capacity];
+	vpns = new int[capacity];
+	ppns = new int[capacity];
+	for (int i=0; i<capacity; i++)
+	    ppns[i] = -1;
+    }
+
+    /**
+     * Return the physical page holding the specified virtual page.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or <tt>-1</tt> if the page is not
+     *		resident.
+     */
+    public int lookup(int pid, int vpn) {
+	int i = find(pid, vpn);
+	return (i == -1) ? -1 : ppns[i];
+    }
+
+    /**
+     * Record that the specified virtual page is held in a physical page.
+     * The page must not already be in the table.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page number.
+     */
+    public void insert(int pid, int vpn, int ppn) {
+	Lib.assertTrue(ppn >= 0 && numEntries < ppns.length/2);
+
+	int i = hash(pid, vpn);
+	while (ppns[i] != -1) {
+	    Lib.assertTrue(pids[i] != pid || vpns[i] != vpn);
+	    i = (i+1) & mask;
+	}
+
+	pids[i] = pid;
+	vpns[i] = vpn;
+	ppns[i] = ppn;
+	numEntries++;
+    }
+
+    /**
+     * Remove the specified virtual page from the table, if it is there.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     */
+    public void remove(int pid, int vpn) {
+	int i = find(pid, vpn);
+	if (i == -1)
+	    return;
+
+	// move back any later entry whose probe sequence passes through i
+	for (int j=(i+1)&mask; ppns[j] != -1; j=(j+1)&mask) {
+	    int home = hash(pids[j], vpns[j]);
+	    boolean stays = (i <= j) ? (i < home && home <= j)
+				     : (i < home || home <= j);
+	    if (stays)
+		continue;
+
+	    pids[i] = pids[j];
+	    vpns[i] = vpns[j];
+	    ppns[i] = ppns[j];
+	    i = j;
+	}
+
+	ppns[i] = -1;
+	numEntries--;
+    }
+
+    /**
+     * Return the slot holding the specified virtual page, or <tt>-1</tt>.
+     */
+    private int find(int pid, int vpn) {
+	for (int i=hash(pid, vpn); ppns[i] != -1; i=(i+1)&mask) {
+	    if (pids[i] == pid && vpns[i] == vpn)
+		return i;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the first slot to probe for the specified virtual page.
+     */
+    private int hash(int pid, int vpn) {
+	int h = pid*0x9E3779B1 + vpn;
+	h ^= (h >>> 16);
+	return h & mask;
+    }
+
+    private int mask;
+    private int numEntries = 0;
+
+    /** The key and value of each slot; a slot is empty if its ppn is -1. */
+    private int[] pids, vpns, ppns;
+}
@@ -0,0 +1,62 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Each frame
+ * has an 8-bit age. Whenever a victim is needed, every age is shifted right
+ * one bit, with the page's used bit shifted in at the top, and the used bits
+ * are cleared; the page with the lowest age, the one referenced least
+ * recently over the last eight choices, is evicted.
+ */
+public class LRUApproxPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new aging policy.
+     */
+    public LRUApproxPolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+	ages = new int[frames.getNumFrames()];
+    }
+
+    public void pageLoaded(int frame) {
+	ages[frame] = 0;
+    }
+
+    public int chooseVictim() {
+	int numFrames = frames.getNumFrames();
+
+	int victim = -1;
+	for (int i=0; i<numFrames; i++) {
+	    // start after the last victim, so ties are not always broken alike
+	    int frame = (start+i) % numFrames;
+	    if (!frames.isEvictable(frame))
+		continue;
+
+	    ages[frame] >>>= 1;
+	    if (frames.isUsed(frame)) {
+		ages[frame] |= 0x80;
+		frames.clearUsed(frame);
+	    }
+
+	    if (victim == -1 || ages[frame] < ages[victim])
+		victim = frame;
+	}
+
+	if (victim != -1)
+	    start = (victim+1) % numFrames;
+
+	return victim;
+    }
+
+    private Frames frames;
+    private int start = 0;
+
+    /** The age of each frame's page; higher means more recently used. */
+    private int[] ages;
+}
@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Random replacement. Evicts a page chosen uniformly from the evictable
+ * frames, using <tt>Lib.random()</tt>, so that runs are repeatable for a
+ * given random seed.
+ */
+public class RandomPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new random policy.
+     */
+    public RandomPolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+	candidates = new int[frames.getNumFrames()];
+    }
+
+    public void pageLoaded(int frame) {
+    }
+
+    public int chooseVictim() {
+	int numCandidates = 0;
+	for (int frame=0; frame<frames.getNumFrames(); frame++) {
+	    if (frames.isEvictable(frame))
+		candidates[numCandidates++] = frame;
+	}
+
+	if (numCandidates == 0)
+	    return -1;
+
+	return candidates[Lib.random(numCandidates)];
+    }
+
+    private Frames frames;
+    private int[] candidates;
+}
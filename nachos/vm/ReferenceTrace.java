@@ -0,0 +1,153 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A page reference trace, written to a file in the stub file system. Each
+ * reference is a 4-byte little-endian record holding a process ID in its top
+ * <tt>pidBits</tt> bits and a virtual page number in the rest. A reference
+ * to the same page as the one before it is not recorded.
+ *
+ * <p>
+ * References are collected in a buffer, which is written out with a single
+ * file operation whenever it fills, and when the trace is closed.
+ *
+ * @see	nachos.vm.ReplacementSimulator
+ */
+public class ReferenceTrace {
+    /**
+     * Allocate a new reference trace. The file is created, or truncated if it
+     * exists, when the first references are written out.
+     *
+     * @param	name	the name of the file in the stub file system.
+     */
+    public ReferenceTrace(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Record a reference to a page.
+     *
+     * @param	pid	the process ID of the process making the reference.
+     * @param	vpn	the virtual page referenced.
+     */
+    public void record(int pid, int vpn) {
+	int record = encode(pid, vpn);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (record != lastRecord) {
+	    lastRecord = record;
+	    Lib.bytesFromInt(buffer, numBuffered*recordSize, record);
+	    numBuffered++;
+
+	    if (numBuffered*recordSize == buffer.length)
+		flush();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Write out the buffered references and close the file.
+     */
+    public void close() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	flush();
+	Machine.interrupt().restore(intStatus);
+
+	fileLock.acquire();
+	if (file != null) {
+	    file.close();
+	    file = null;
+	}
+	fileLock.release();
+    }
+
+    /**
+     * Write out the buffered references. Interrupts must be disabled; they
+     * are enabled while the file is written.
+     */
+    private void flush() {
+	if (numBuffered == 0)
+	    return;
+
+	// hand the buffer off and reserve its place in the file before blocking
+	byte[] full = buffer;
+	int length = numBuffered*recordSize;
+	int pos = filePos;
+
+	buffer = new byte[bufferRecords*recordSize];
+	numBuffered = 0;
+	filePos += length;
+
+	Machine.interrupt().enable();
+
+	fileLock.acquire();
+	if (file == null) {
+	    file = ThreadedKernel.fileSystem.open(name, true);
+	    Lib.assertTrue(file != null, "unable to create trace file");
+	}
+	int amount = file.write(pos, full, 0, length);
+	Lib.assertTrue(amount == length, "trace write failed");
+	fileLock.release();
+
+	Machine.interrupt().disable();
+    }
+
+    /**
+     * Pack a reference into a trace record.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @return	the record.
+     */
+    public static int encode(int pid, int vpn) {
+	Lib.assertTrue(pid >= 0 && pid < (1<<pidBits));
+	Lib.assertTrue(vpn >= 0 && vpn <= vpnMask);
+
+	return (pid << (32-pidBits)) | vpn;
+    }
+
+    /**
+     * Return the process ID in a trace record.
+     *
+     * @param	record	the record.
+     * @return	the process ID.
+     */
+    public static int decodePID(int record) {
+	return record >>> (32-pidBits);
+    }
+
+    /**
+     * Return the virtual page number in a trace record.
+     *
+     * @param	record	the record.
+     * @return	the virtual page number.
+     */
+    public static int decodeVPN(int record) {
+	return record & vpnMask;
+    }
+
+    private String name;
+    private OpenFile file = null;
+    /** Held while the file is being opened or written. */
+    private Lock fileLock = new Lock();
+    private int filePos = 0;
+
+    private byte[] buffer = new byte[bufferRecords*recordSize];
+    private int numBuffered = 0;
+    private int lastRecord = -1;
+
+    /** The size of a record in the trace file, in bytes. */
+    public static final int recordSize = 4;
+    /** The number of bits of a record holding the process ID. */
+    public static final int pidBits = 10;
+
+    private static final int vpnMask = (1 << (32-pidBits)) - 1;
+    private static final int bufferRecords = 1024;
+}
@@ -0,0 +1,102 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A page replacement policy, which decides which physical page to evict
+ * when memory is full. The same policies run inside <tt>VMKernel</tt> and
+ * in <tt>ReplacementSimulator</tt>, each of which presents its physical
+ * pages to the policy as a set of <tt>Frames</tt>.
+ *
+ * <p>
+ * The kernel chooses a policy with the <tt>VMKernel.replacementPolicy</tt>
+ * key in <tt>nachos.conf</tt>, which names a class implementing this
+ * interface.
+ *
+ * @see	nachos.vm.ClockPolicy
+ * @see	nachos.vm.SecondChancePolicy
+ * @see	nachos.vm.WSClockPolicy
+ * @see	nachos.vm.LRUApproxPolicy
+ * @see	nachos.vm.RandomPolicy
+ */
+public interface ReplacementPolicy {
+    /**
+     * Attach this policy to the frames it will choose from. Called once,
+     * before any other method.
+     *
+     * @param	frames	the frames.
+     */
+    public void initialize(Frames frames);
+
+    /**
+     * Notify this policy that a frame has just been filled with a new page.
+     *
+     * @param	frame	the frame number.
+     */
+    public void pageLoaded(int frame);
+
+    /**
+     * Choose a frame to evict. The policy may clear used bits as it looks,
+     * but does not evict the page itself.
+     *
+     * @return	the frame number, or <tt>-1</tt> if no frame can be evicted.
+     */
+    public int chooseVictim();
+
+    /**
+     * The physical pages a policy chooses from, with the reference and
+     * modification bits the hardware keeps for them.
+     */
+    public interface Frames {
+	/**
+	 * Return the number of frames.
+	 *
+	 * @return	the number of frames.
+	 */
+	public int getNumFrames();
+
+	/**
+	 * Test whether a frame holds a page that may be evicted.
+	 *
+	 * @param	frame	the frame number.
+	 * @return	<tt>true</tt> if the frame may be chosen.
+	 */
+	public boolean isEvictable(int frame);
+
+	/**
+	 * Test whether the page in a frame has been referenced since its used
+	 * bit was last cleared.
+	 *
+	 * @param	frame	the frame number.
+	 * @return	the used bit of the page.
+	 */
+	public boolean isUsed(int frame);
+
+	/**
+	 * Clear the used bit of the page in a frame.
+	 *
+	 * @param	frame	the frame number.
+	 */
+	public void clearUsed(int frame);
+
+	/**
+	 * Test whether the page in a frame would have to be written out if
+	 * it were evicted.
+	 *
+	 * @param	frame	the frame number.
+	 * @return	the dirty bit of the page.
+	 */
+	public boolean isDirty(int frame);
+
+	/**
+	 * Return the current time, in any unit that increases as pages are
+	 * referenced.
+	 *
+	 * @return	the current time.
+	 */
+	public long getTime();
+    }
+}
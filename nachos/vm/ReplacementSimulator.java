@@ -0,0 +1,285 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Replays a page reference trace, recorded by <tt>VMKernel</tt> when
+ * <tt>VMKernel.traceFile</tt> is set, against every replacement policy and
+ * against Belady's optimal policy, which evicts the page whose next
+ * reference is furthest in the future, and prints the number of page faults
+ * each takes for each of several memory sizes. It runs on its own, outside
+ * the machine simulation:
+ *
+ * <pre>
+ * java nachos.vm.ReplacementSimulator [-s seed] [-w window] trace frames...
+ * </pre>
+ *
+ * <p>
+ * Each record of the trace is taken as one reference, and time is measured
+ * in references, so the WSClock window is a number of references. The trace
+ * does not say which references were writes, so every page is treated as
+ * clean.
+ */
+public class ReplacementSimulator implements ReplacementPolicy.Frames {
+    /**
+     * Allocate a new simulator for a trace.
+     *
+     * @param	trace	the trace records.
+     * @param	numFrames	the number of physical pages to simulate.
+     */
+    public ReplacementSimulator(int[] trace, int numFrames) {
+	this.trace = trace;
+	this.numFrames = numFrames;
+
+	frameRecords = new int[numFrames];
+	used = new boolean[numFrames];
+    }
+
+    /**
+     * Replay the trace against a policy.
+     *
+     * @param	policy	the policy, or <tt>null</tt> for the optimal policy.
+     * @return	the number of page faults.
+     */
+    public int run(ReplacementPolicy policy) {
+	HashMap<Integer,Integer> residentFrames =
+	    new HashMap<Integer,Integer>();
+	int[] nextUses = (policy == null) ? findNextUses() : null;
+	int[] frameNextUses = new int[numFrames];
+	int numFaults = 0;
+
+	if (policy != null)
+	    policy.initialize(this);
+
+	for (time=0; time<trace.length; time++) {
+	    Integer frame = residentFrames.get(trace[time]);
+	    if (frame == null) {
+		numFaults++;
+
+		int victim;
+		if (residentFrames.size() < numFrames)
+		    victim = residentFrames.size();
+		else if (policy == null)
+		    victim = findFurthest(frameNextUses);
+		else
+		    victim = policy.chooseVictim();
+
+		Lib.assertTrue(victim >= 0 && victim < numFrames);
+		if (residentFrames.size() == numFrames)
+		    residentFrames.remove(frameRecords[victim]);
+
+		frame = victim;
+		frameRecords[frame] = trace[time];
+		residentFrames.put(trace[time], frame);
+		if (policy != null)
+		    policy.pageLoaded(frame);
+	    }
+
+	    used[frame] = true;
+	    if (nextUses != null)
+		frameNextUses[frame] = nextUses[time];
+	}
+
+	return numFaults;
+    }
+
+    /**
+     * Find, for each reference, when the same page is next referenced.
+     */
+    private int[] findNextUses() {
+	int[] nextUses = new int[trace.length];
+	HashMap<Integer,Integer> nextUse = new HashMap<Integer,Integer>();
+
+	for (int i=trace.length-1; i>=0; i--) {
+	    Integer next = nextUse.get(trace[i]);
+	    nextUses[i] = (next == null) ? Integer.MAX_VALUE : next;
+	    nextUse.put(trace[i], i);
+	}
+
+	return nextUses;
+    }
+
+    /**
+     * Find the frame whose page is next referenced furthest in the future.
+     */
+    private int findFurthest(int[] frameNextUses) {
+	int victim = 0;
+	for (int frame=1; frame<numFrames; frame++) {
+	    if (frameNextUses[frame] > frameNextUses[victim])
+		victim = frame;
+	}
+
+	return victim;
+    }
+
+    public int getNumFrames() {
+	return numFrames;
+    }
+
+    public boolean isEvictable(int frame) {
+	return true;
+    }
+
+    public boolean isUsed(int frame) {
+	return used[frame];
+    }
+
+    public void clearUsed(int frame) {
+	used[frame] = false;
+    }
+
+    public boolean isDirty(int frame) {
+	return false;
+    }
+
+    public long getTime() {
+	return time;
+    }
+
+    /**
+     * Read a trace file.
+     *
+     * @param	fileName	the name of the trace file.
+     * @return	the trace records.
+     */
+    public static int[] readTrace(String fileName) throws IOException {
+	File file = new File(fileName);
+	byte[] data = new byte[(int) file.length()];
+
+	FileInputStream in = new FileInputStream(file);
+	try {
+	    int offset = 0;
+	    while (offset < data.length) {
+		int amount = in.read(data, offset, data.length-offset);
+		if (amount <= 0)
+		    break;
+		offset += amount;
+	    }
+	}
+	finally {
+	    in.close();
+	}
+
+	int[] trace = new int[data.length/ReferenceTrace.recordSize];
+	for (int i=0; i<trace.length; i++)
+	    trace[i] = Lib.bytesToInt(data, i*ReferenceTrace.recordSize);
+
+	return trace;
+    }
+
+    /**
+     * Simulator main entry point.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+	long randomSeed = 0;
+	long window = defaultWindow;
+	String traceFileName = null;
+	int[] frameCounts = new int[args.length];
+	int numFrameCounts = 0;
+
+	for (int i=0; i<args.length; ) {
+	    String arg = args[i++];
+	    if (arg.equals("-s")) {
+		Lib.assertTrue(i < args.length, "switch without argument");
+		try {
+		    randomSeed = Long.parseLong(args[i++]);
+		}
+		catch (NumberFormatException e) {
+		    Lib.assertNotReached("bad value for -s switch");
+		}
+	    }
+	    else if (arg.equals("-w")) {
+		Lib.assertTrue(i < args.length, "switch without argument");
+		try {
+		    window = Long.parseLong(args[i++]);
+		}
+		catch (NumberFormatException e) {
+		    Lib.assertNotReached("bad value for -w switch");
+		}
+	    }
+	    else if (traceFileName == null) {
+		traceFileName = arg;
+	    }
+	    else {
+		try {
+		    frameCounts[numFrameCounts++] = Integer.parseInt(arg);
+		}
+		catch (NumberFormatException e) {
+		    Lib.assertNotReached("bad number of frames: " + arg);
+		}
+	    }
+	}
+
+	if (traceFileName == null || numFrameCounts == 0) {
+	    System.out.println("usage: java nachos.vm.ReplacementSimulator "
+			       + "[-s seed] [-w window] trace frames...");
+	    System.exit(1);
+	}
+
+	Lib.seedRandom(randomSeed);
+
+	int[] trace = readTrace(traceFileName);
+
+	HashMap<Integer,Integer> pages = new HashMap<Integer,Integer>();
+	for (int i=0; i<trace.length; i++)
+	    pages.put(trace[i], i);
+	System.out.println(trace.length + " references to " + pages.size()
+			   + " pages");
+
+	String[] names = { "clock", "2nd-chance", "wsclock", "lru-approx",
+			   "random", "optimal" };
+	System.out.print(pad("frames"));
+	for (int i=0; i<names.length; i++)
+	    System.out.print(pad(names[i]));
+	System.out.println();
+
+	for (int i=0; i<numFrameCounts; i++) {
+	    Lib.assertTrue(frameCounts[i] > 0, "need at least one frame");
+
+	    WSClockPolicy wsClock = new WSClockPolicy();
+	    wsClock.setWindow(window);
+
+	    ReplacementPolicy[] policies = {
+		new ClockPolicy(), new SecondChancePolicy(), wsClock,
+		new LRUApproxPolicy(), new RandomPolicy(), null
+	    };
+
+	    System.out.print(pad("" + frameCounts[i]));
+	    for (int j=0; j<policies.length; j++) {
+		ReplacementSimulator simulator =
+		    new ReplacementSimulator(trace, frameCounts[i]);
+		System.out.print(pad("" + simulator.run(policies[j])));
+	    }
+	    System.out.println();
+	}
+    }
+
+    private static String pad(String s) {
+	while (s.length() < columnWidth)
+	    s = " " + s;
+	return s;
+    }
+
+    private int[] trace;
+    private int numFrames;
+    private int time;
+
+    /** The trace record of the page held in each frame. */
+    private int[] frameRecords;
+    /** The used bit of the page held in each frame. */
+    private boolean[] used;
+
+    /** The default WSClock window, in references. */
+    private static final long defaultWindow = 100;
+    private static final int columnWidth = 11;
+}
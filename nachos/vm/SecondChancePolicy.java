@@ -0,0 +1,71 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.LinkedList;
+
+/**
+ * Second-chance replacement, preferring clean pages. Frames are kept in a
+ * FIFO queue in the order their pages were loaded. The oldest page that is
+ * neither referenced nor dirty is evicted; failing that, the oldest
+ * unreferenced dirty page. If every page has been referenced, each is given
+ * its second chance: its used bit is cleared and it moves to the back of the
+ * queue, as if just loaded, and the search starts over.
+ */
+public class SecondChancePolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new second-chance policy.
+     */
+    public SecondChancePolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+    }
+
+    public void pageLoaded(int frame) {
+	queue.remove((Integer) frame);
+	queue.add(frame);
+    }
+
+    public int chooseVictim() {
+	for (int pass=0; pass<2; pass++) {
+	    int dirtyVictim = -1;
+	    for (int frame : queue) {
+		if (!frames.isEvictable(frame) || frames.isUsed(frame))
+		    continue;
+
+		if (!frames.isDirty(frame)) {
+		    queue.remove((Integer) frame);
+		    return frame;
+		}
+
+		if (dirtyVictim == -1)
+		    dirtyVictim = frame;
+	    }
+
+	    if (dirtyVictim != -1) {
+		queue.remove((Integer) dirtyVictim);
+		return dirtyVictim;
+	    }
+
+	    // every page was referenced; give each its second chance
+	    for (int i=queue.size(); i>0; i--) {
+		int frame = queue.removeFirst();
+		if (frames.isEvictable(frame))
+		    frames.clearUsed(frame);
+		queue.add(frame);
+	    }
+	}
+
+	return -1;
+    }
+
+    private Frames frames;
+
+    /** Frames in the order their pages were loaded, oldest first. */
+    private LinkedList<Integer> queue = new LinkedList<Integer>();
+}
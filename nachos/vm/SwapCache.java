@@ -0,0 +1,272 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of compressed pages, kept in kernel memory in front of the
+ * swap file, keyed by swap slot. Pages are compressed with a simple LZ77
+ * scheme: user pages are mostly zeros, or small integers padded with zero
+ * bytes, which compress well and decompress far faster than a round trip to
+ * the file system.
+ *
+ * <p>
+ * The pool holds at most <tt>maxBytes</tt> bytes of compressed pages. When
+ * it overflows, the least recently used pages are taken out, to be written
+ * to the swap file by its owner.
+ */
+public class SwapCache {
+    /**
+     * Allocate a new, empty swap cache.
+     *
+     * @param	maxBytes	the maximum number of bytes of compressed pages
+     *				to keep.
+     */
+    public SwapCache(int maxBytes) {
+	Lib.assertTrue(maxBytes >= 0);
+	this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Compress a page and add it to the cache, if it compresses well enough.
+     * Any page already cached in the slot is replaced.
+     *
+     * @param	slot	the swap slot the page belongs in.
+     * @param	data	the array containing the page.
+     * @param	offset	the offset of the page in <i>data</i>.
+     * @return	<tt>true</tt> if the page was cached, or <tt>false</tt> if it
+     *		must be written to the file.
+     */
+    public boolean put(int slot, byte[] data, int offset) {
+	remove(slot);
+
+	byte[] compressed = compress(data, offset);
+	if (compressed == null || compressed.length > maxBytes)
+	    return false;
+
+	pages.put(slot, compressed);
+	numBytes += compressed.length;
+
+	Lib.debug(dbgVM, "\tcached slot " + slot + " in "
+		  + compressed.length + " bytes");
+	return true;
+    }
+
+    /**
+     * Decompress the page cached in a slot, if there is one, marking it
+     * recently used.
+     *
+     * @param	slot	the swap slot.
+     * @param	data	the array to decompress the page into.
+     * @param	offset	the offset in <i>data</i> to decompress to.
+     * @return	<tt>true</tt> if the page was cached.
+     */
+    public boolean get(int slot, byte[] data, int offset) {
+	byte[] compressed = pages.get(slot);
+	if (compressed == null)
+	    return false;
+
+	decompress(compressed, data, offset);
+	return true;
+    }
+
+    /**
+     * Test whether a page is cached in a slot, without marking it used.
+     *
+     * @param	slot	the swap slot.
+     * @return	<tt>true</tt> if the slot's page is cached.
+     */
+    public boolean contains(int slot) {
+	return pages.containsKey(slot);
+    }
+
+    /**
+     * Drop the page cached in a slot, if there is one.
+     *
+     * @param	slot	the swap slot.
+     */
+    public void remove(int slot) {
+	byte[] compressed = pages.remove(slot);
+	if (compressed != null)
+	    numBytes -= compressed.length;
+    }
+
+    /**
+     * Take the least recently used page out of the cache if the cache holds
+     * more than it may, so that it can be written to the file.
+     *
+     * @param	data	an array of at least a page, into which the page is
+     *			decompressed.
+     * @return	the slot of the page taken out, or <tt>-1</tt> if the cache
+     *		is within its bound.
+     */
+    public int spill(byte[] data) {
+	if (numBytes <= maxBytes)
+	    return -1;
+
+	Iterator<Map.Entry<Integer,byte[]>> i = pages.entrySet().iterator();
+	Map.Entry<Integer,byte[]> eldest = i.next();
+	i.remove();
+
+	numBytes -= eldest.getValue().length;
+	decompress(eldest.getValue(), data, 0);
+
+	Lib.debug(dbgVM, "\tspilling slot " + eldest.getKey());
+	return eldest.getKey();
+    }
+
+    /**
+     * Compress a page. The result is a sequence of literal runs and matches.
+     * A control byte below <tt>0x80</tt> is followed by that many plus one
+     * literal bytes; any other control byte is followed by a two-byte
+     * offset, and copies <tt>minMatch</tt> plus its low seven bits from that
+     * far back in the page.
+     *
+     * @param	data	the array containing the page.
+     * @param	offset	the offset of the page in <i>data</i>.
+     * @return	the compressed page, or <tt>null</tt> if it would take more
+     *		than <tt>maxCompressed</tt> bytes.
+     */
+    static byte[] compress(byte[] data, int offset) {
+	byte[] out = new byte[maxCompressed];
+	int outPos = 0;
+
+	int[] table = new int[hashSize];
+	Arrays.fill(table, -1);
+
+	int literalStart = 0;
+	int pos = 0;
+	while (pos < pageSize) {
+	    int matchLength = 0, matchOffset = 0;
+
+	    if (pos + minMatch <= pageSize) {
+		int hash = hash(data, offset+pos);
+		int candidate = table[hash];
+		table[hash] = pos;
+
+		if (candidate != -1) {
+		    int limit = Math.min(pageSize-pos, maxMatch);
+		    while (matchLength < limit &&
+			   data[offset+candidate+matchLength] ==
+			   data[offset+pos+matchLength])
+			matchLength++;
+		    matchOffset = pos - candidate;
+		}
+	    }
+
+	    if (matchLength < minMatch) {
+		pos++;
+		continue;
+	    }
+
+	    outPos = emitLiterals(data, offset, literalStart, pos, out, outPos);
+	    if (outPos == -1 || outPos+3 > out.length)
+		return null;
+
+	    out[outPos++] = (byte) (0x80 | (matchLength-minMatch));
+	    out[outPos++] = (byte) matchOffset;
+	    out[outPos++] = (byte) (matchOffset >> 8);
+
+	    pos += matchLength;
+	    literalStart = pos;
+	}
+
+	outPos = emitLiterals(data, offset, literalStart, pos, out, outPos);
+	if (outPos == -1)
+	    return null;
+
+	byte[] result = new byte[outPos];
+	System.arraycopy(out, 0, result, 0, outPos);
+	return result;
+    }
+
+    /**
+     * Append the literal bytes from <i>start</i> to <i>end</i> of the page to
+     * a compressed page.
+     *
+     * @return	the new length of the compressed page, or <tt>-1</tt> if it
+     *		does not fit.
+     */
+    private static int emitLiterals(byte[] data, int offset, int start,
+				    int end, byte[] out, int outPos) {
+	while (start < end) {
+	    int length = Math.min(end-start, maxLiterals);
+	    if (outPos+1+length > out.length)
+		return -1;
+
+	    out[outPos++] = (byte) (length-1);
+	    System.arraycopy(data, offset+start, out, outPos, length);
+	    outPos += length;
+	    start += length;
+	}
+
+	return outPos;
+    }
+
+    /**
+     * Decompress a page compressed by <tt>compress()</tt>.
+     *
+     * @param	compressed	the compressed page.
+     * @param	data		the array to decompress into.
+     * @param	offset		the offset in <i>data</i> to decompress to.
+     */
+    static void decompress(byte[] compressed, byte[] data, int offset) {
+	int pos = 0;
+	int inPos = 0;
+	while (inPos < compressed.length) {
+	    int control = compressed[inPos++] & 0xFF;
+	    if (control < 0x80) {
+		int length = control+1;
+		System.arraycopy(compressed, inPos, data, offset+pos, length);
+		inPos += length;
+		pos += length;
+	    }
+	    else {
+		int length = (control & 0x7F) + minMatch;
+		int matchOffset = (compressed[inPos] & 0xFF) |
+		    ((compressed[inPos+1] & 0xFF) << 8);
+		inPos += 2;
+
+		// the match may overlap the bytes it produces
+		for (int i=0; i<length; i++, pos++)
+		    data[offset+pos] = data[offset+pos-matchOffset];
+	    }
+	}
+
+	Lib.assertTrue(pos == pageSize, "corrupt compressed page");
+    }
+
+    private static int hash(byte[] data, int pos) {
+	int key = (data[pos] & 0xFF) | ((data[pos+1] & 0xFF) << 8) |
+	    ((data[pos+2] & 0xFF) << 16);
+	return (key * 0x9E3779B1) >>> (32-hashBits);
+    }
+
+    private int maxBytes;
+    private int numBytes = 0;
+
+    /** The cached pages, least recently used first. */
+    private LinkedHashMap<Integer,byte[]> pages =
+	new LinkedHashMap<Integer,byte[]>(16, 0.75f, true);
+
+    private static final int pageSize = Processor.pageSize;
+
+    /** The largest compressed page worth keeping. */
+    private static final int maxCompressed = pageSize/2;
+    /** The shortest and longest matches. */
+    private static final int minMatch = 3, maxMatch = minMatch + 0x7F;
+    /** The longest literal run. */
+    private static final int maxLiterals = 0x80;
+
+    private static final int hashBits = 10;
+    private static final int hashSize = 1 << hashBits;
+
+    private static final char dbgVM = 'v';
+}
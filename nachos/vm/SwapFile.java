@@ -0,0 +1,192 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.BitSet;
+
+/**
+ * A file holding pages evicted from physical memory, divided into page-sized
+ * slots. The file is opened through <tt>ThreadedKernel.fileSystem</tt> the
+ * first time a page is written to it, and removed when it is closed.
+ *
+ * <p>
+ * Free slots are tracked in a bitmap. Since every file system operation costs
+ * the same fixed delay whatever its size, runs of consecutive slots can be
+ * allocated, so that several pages are written, and later read back, with a
+ * single operation.
+ *
+ * <p>
+ * Pages written to the file are first offered to a <tt>SwapCache</tt>,
+ * which keeps those that compress well in kernel memory; such a page costs
+ * no file operation to write or to read back. Only pages that do not
+ * compress, and pages spilled from the cache when it fills, reach the file.
+ */
+public class SwapFile {
+    /**
+     * Allocate a new swap file with the specified name. Nothing is created
+     * until a page is written.
+     *
+     * @param	name	the name of the file in the stub file system.
+     * @param	cacheSize	the number of bytes of compressed pages to keep
+     *				in memory, or <tt>0</tt> to keep none.
+     */
+    public SwapFile(String name, int cacheSize) {
+	this.name = name;
+	cache = new SwapCache(cacheSize);
+    }
+
+    /**
+     * Reserve a run of consecutive slots, the lowest such run that is free.
+     *
+     * @param	count	the number of slots to reserve.
+     * @return	the first slot of the run.
+     */
+    public int allocateSlots(int count) {
+	Lib.assertTrue(count > 0);
+
+	int slot = usedSlots.nextClearBit(0);
+	while (usedSlots.nextSetBit(slot) != -1 &&
+	       usedSlots.nextSetBit(slot) < slot+count)
+	    slot = usedSlots.nextClearBit(usedSlots.nextSetBit(slot));
+
+	usedSlots.set(slot, slot+count);
+	return slot;
+    }
+
+    /**
+     * Release a slot reserved by <tt>allocateSlots()</tt>.
+     *
+     * @param	slot	the slot number.
+     */
+    public void freeSlot(int slot) {
+	Lib.assertTrue(usedSlots.get(slot));
+	usedSlots.clear(slot);
+	cache.remove(slot);
+    }
+
+    /**
+     * Read the page in the specified slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to read into.
+     */
+    public void read(int slot, int ppn) {
+	read(slot, new int[] { ppn }, 1);
+    }
+
+    /**
+     * Read the pages in consecutive slots into physical pages. Pages held in
+     * the cache are decompressed; each run of the others is read from the
+     * file with a single operation.
+     *
+     * @param	slot	the first slot to read.
+     * @param	ppns	the physical pages to read into, in slot order.
+     * @param	count	the number of pages to read.
+     */
+    public void read(int slot, int[] ppns, int count) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int runStart = 0;
+	for (int i=0; i<=count; i++) {
+	    if (i == count || cache.get(slot+i, memory, ppns[i]*pageSize)) {
+		if (i > runStart)
+		    readFile(slot+runStart, ppns, runStart, i-runStart);
+		runStart = i+1;
+	    }
+	}
+
+	Lib.debug(dbgVM, "\tswapped in " + count + " pages from slot " + slot);
+    }
+
+    /**
+     * Write physical pages to consecutive slots. Each page is compressed into
+     * the cache if it can be; each run of the others is written to the file
+     * with a single operation. Any pages the cache no longer has room for are
+     * then written out to their own slots.
+     *
+     * @param	slot	the first slot to write.
+     * @param	ppns	the physical pages to write, in slot order.
+     * @param	count	the number of pages to write.
+     */
+    public void write(int slot, int[] ppns, int count) {
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buffer = new byte[count*pageSize];
+
+	int runStart = 0;
+	for (int i=0; i<=count; i++) {
+	    if (i == count || cache.put(slot+i, memory, ppns[i]*pageSize)) {
+		if (i > runStart) {
+		    writeFile(slot+runStart, buffer, runStart*pageSize,
+			      (i-runStart)*pageSize);
+		}
+		runStart = i+1;
+	    }
+	    else {
+		System.arraycopy(memory, ppns[i]*pageSize,
+				 buffer, i*pageSize, pageSize);
+	    }
+	}
+
+	byte[] page = new byte[pageSize];
+	for (int spilled; (spilled = cache.spill(page)) != -1; )
+	    writeFile(spilled, page, 0, pageSize);
+
+	Lib.debug(dbgVM, "\tswapped out " + count + " pages to slot " + slot);
+    }
+
+    /**
+     * Read consecutive slots from the file with a single read.
+     */
+    private void readFile(int slot, int[] ppns, int first, int count) {
+	Lib.assertTrue(file != null);
+
+	byte[] buffer = new byte[count*pageSize];
+	int amount = file.read(slot*pageSize, buffer, 0, buffer.length);
+	Lib.assertTrue(amount == buffer.length, "swap read failed");
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<count; i++) {
+	    System.arraycopy(buffer, i*pageSize,
+			     memory, ppns[first+i]*pageSize, pageSize);
+	}
+    }
+
+    /**
+     * Write consecutive slots to the file with a single write, creating the
+     * file if necessary.
+     */
+    private void writeFile(int slot, byte[] buffer, int offset, int length) {
+	if (file == null) {
+	    file = ThreadedKernel.fileSystem.open(name, true);
+	    Lib.assertTrue(file != null, "unable to create swap file");
+	}
+
+	int amount = file.write(slot*pageSize, buffer, offset, length);
+	Lib.assertTrue(amount == length, "swap write failed");
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	if (file != null) {
+	    file.close();
+	    ThreadedKernel.fileSystem.remove(name);
+	    file = null;
+	}
+    }
+
+    private String name;
+    private OpenFile file = null;
+    /** Compressed pages kept in memory instead of in the file. */
+    private SwapCache cache;
+
+    /** The slots in use, one bit per slot. */
+    private BitSet usedSlots = new BitSet();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -5,8 +5,87 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * The kernel keeps a global inverted page table, recording which process and
+ * virtual page each physical page holds. When no physical page is free, one
+ * is taken from its owner. The victim is chosen by the
+ * <tt>ReplacementPolicy</tt> named by <tt>VMKernel.replacementPolicy</tt>
+ * in <tt>nachos.conf</tt>, the clock algorithm by default. Evicted pages
+ * that were modified are written to a swap file.
+ *
+ * <p>
+ * A page keeps its swap slot after it is read back in, so that it need not
+ * be written again if it is evicted before being modified. When a victim
+ * must be written, the kernel looks ahead for a few more unreferenced
+ * modified pages, and evicts them as well, writing all of them to
+ * consecutive slots with one write. The extra physical pages are left free
+ * for the faults that follow.
+ *
+ * <p>
+ * The TLB only ever holds translations of a single process, the TLB owner.
+ * Entries are refilled one at a time on each TLB miss. Resident pages are
+ * also indexed by process ID and virtual page in a hashed
+ * <tt>InvertedPageTable</tt>, so a miss on a resident page is resolved with
+ * a single lookup; only a miss on a page that is not resident goes through
+ * the process's page table and the page fault path.
+ *
+ * <p>
+ * The processor's TLB entries carry no address-space identifier, so the
+ * kernel tags them in software instead. Up to <tt>numASIDs</tt> processes
+ * at a time hold an ASID, handed out on their first switch-in and
+ * recycled from the least recently run holder when none is free. When a
+ * process is switched out, the contents of the TLB are saved under its
+ * ASID; when it is switched back in, they are reloaded, so that it resumes
+ * with a warm TLB rather than taking a miss on every page it touches.
+ * A process that has lost its ASID starts with an empty TLB.
+ *
+ * <p>
+ * Optionally, when a process's TLB misses follow a sequential sweep, the
+ * next few resident pages of the sweep are loaded into the TLB along with
+ * the page that missed, replacing only invalid entries and entries not
+ * referenced since the previous miss. The number of pages is set by
+ * <tt>VMKernel.tlbPrefetch</tt> in <tt>nachos.conf</tt>, and is
+ * <tt>0</tt>, disabling prefetch, by default: with only four TLB entries,
+ * the misses of the test programs mostly come from a handful of pages
+ * competing for the TLB, not from sweeps.
+ *
+ * <p>
+ * Pages that start out as zeros, such as stack pages and pages of
+ * uninitialized sections, are all mapped read-only to a single zero page
+ * when first read, and given a zero-filled physical page of their own only
+ * when first written. A page first touched by a store, as told by decoding
+ * the faulting instruction, gets its own page at once.
+ *
+ * <p>
+ * When a process faults on the page after the one it last faulted on, up to
+ * <tt>VMKernel.readAhead</tt> following pages are read in along with it,
+ * with the same file operation, into physical pages that are already free.
+ *
+ * <p>
+ * Evicted pages that compress well are kept compressed in memory rather than
+ * written to the swap file, up to <tt>VMKernel.swapCacheSize</tt> bytes of
+ * them; the least recently used are spilled to the file as the cache fills.
+ *
+ * <p>
+ * A page-out daemon, a kernel thread of its own, keeps a reserve of free
+ * physical pages. When an allocation leaves fewer than
+ * <tt>VMKernel.pageOutLowWater</tt> pages free, the daemon is woken, and
+ * evicts pages chosen by the replacement policy, writing back those that
+ * were modified, until <tt>VMKernel.pageOutHighWater</tt> pages are free.
+ * Page faults then mostly find a free page, rather than waiting on the
+ * eviction of another. Both default to a small fraction of physical
+ * memory, and the daemon is not started if the low watermark is
+ * <tt>0</tt>.
+ *
+ * <p>
+ * If <tt>VMKernel.traceFile</tt> is set, the pages referenced by user
+ * processes are recorded in that file, to be replayed against each
+ * replacement policy by <tt>ReplacementSimulator</tt>.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,11 +100,72 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frameOwners = new VMProcess[numPhysPages];
+	frameVPNs = new int[numPhysPages];
+	framePinned = new boolean[numPhysPages];
+	frameReadOnly = new boolean[numPhysPages];
+	residentPages = new InvertedPageTable(numPhysPages);
+
+	int tlbSize = Machine.processor().getTLBSize();
+	asidOwners = new VMProcess[numASIDs];
+	asidLastRun = new long[numASIDs];
+	savedTLBs = new TranslationEntry[numASIDs][tlbSize];
+	for (int asid=0; asid<numASIDs; asid++) {
+	    for (int i=0; i<tlbSize; i++)
+		savedTLBs[asid][i] = new TranslationEntry();
+	}
+
+	tlbPrefetch = Config.getInteger("VMKernel.tlbPrefetch",
+					defaultTLBPrefetch);
+	Lib.assertTrue(tlbPrefetch >= 0);
+
+	readAhead = Config.getInteger("VMKernel.readAhead", defaultReadAhead);
+	Lib.assertTrue(readAhead >= 0);
+
+	replacementPolicy = (ReplacementPolicy)
+	    Lib.constructObject(Config.getString("VMKernel.replacementPolicy",
+						 defaultReplacementPolicy));
+	if (replacementPolicy instanceof WSClockPolicy) {
+	    ((WSClockPolicy) replacementPolicy).setWindow(
+		Config.getInteger("VMKernel.workingSetWindow",
+				  (int) WSClockPolicy.defaultWindow));
+	}
+	replacementPolicy.initialize(new KernelFrames());
+
+	String traceFileName = Config.getString("VMKernel.traceFile", null);
+	if (traceFileName != null) {
+	    referenceTrace = new ReferenceTrace(traceFileName);
+	    // prefetched translations would hide references from the trace
+	    tlbPrefetch = 0;
+	}
+
+	vmLock = new Lock();
+	int swapCacheSize = Config.getInteger("VMKernel.swapCacheSize",
+					      defaultSwapCacheSize);
+	Lib.assertTrue(swapCacheSize >= 0);
+	swapFile = new SwapFile(swapFileName, swapCacheSize);
+
+	pageOutLowWater = Config.getInteger("VMKernel.pageOutLowWater",
+					    numPhysPages/16);
+	pageOutHighWater = Config.getInteger("VMKernel.pageOutHighWater",
+					     numPhysPages/8);
+	Lib.assertTrue(pageOutLowWater >= 0 &&
+		       pageOutHighWater >= pageOutLowWater &&
+		       pageOutHighWater < numPhysPages);
+
+	pageOutNeeded = new Condition(vmLock);
+	if (pageOutLowWater > 0) {
+	    new KThread(new Runnable() {
+		    public void run() { pageOutDaemon(); }
+		}).setName("page-out daemon").fork();
+	}
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,14 +176,766 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (referenceTrace != null)
+	    referenceTrace.close();
+	swapFile.close();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page for a user page, evicting another page if none
+     * is free. The new page has no owner, so it cannot itself be evicted,
+     * until <tt>setFrameOwner()</tt> is called. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @return	the physical page number, or <tt>-1</tt> if every page is in
+     *		use and none can be evicted.
+     */
+    static int allocateFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	int ppn = UserKernel.allocatePage();
+	if (ppn == -1)
+	    ppn = evictFrame();
+
+	if (UserKernel.getNumFreePages() < pageOutLowWater)
+	    pageOutNeeded.wake();
+
+	return ppn;
+    }
+
+    /**
+     * The body of the page-out daemon. Each time it is woken, it evicts pages
+     * until <tt>pageOutHighWater</tt> pages are free, or until no more can
+     * be evicted, and then sleeps until the free pages next run low.
+     */
+    private static void pageOutDaemon() {
+	vmLock.acquire();
+
+	while (true) {
+	    pageOutNeeded.sleep();
+
+	    Lib.debug(dbgVM, "page-out daemon: "
+		      + UserKernel.getNumFreePages() + " pages free");
+
+	    while (UserKernel.getNumFreePages() < pageOutHighWater) {
+		int ppn = evictFrame();
+		if (ppn == -1)
+		    break;
+
+		UserKernel.freePage(ppn);
+	    }
+	}
+    }
+
+    /**
+     * Take a reference to the zero page: a physical page of zeros, which is
+     * never written, and to which processes map their zero-filled pages
+     * until they write them. The zero page is allocated when first needed,
+     * and freed when no page is mapped to it. It has no owner, so it is
+     * never evicted. The caller must hold <tt>vmLock</tt>.
+     *
+     * @return	the physical page number of the zero page, or <tt>-1</tt> if
+     *		no physical page could be found for it.
+     */
+    static int acquireZeroFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	if (zeroFrame == -1) {
+	    int ppn = allocateFrame();
+	    if (ppn == -1)
+		return -1;
+
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    zeroFrame = ppn;
+	}
+
+	numZeroMappings++;
+	return zeroFrame;
+    }
+
+    /**
+     * Drop a reference taken by <tt>acquireZeroFrame()</tt>. The caller must
+     * hold <tt>vmLock</tt>.
+     */
+    static void releaseZeroFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread() && numZeroMappings > 0);
+
+	if (--numZeroMappings == 0) {
+	    UserKernel.freePage(zeroFrame);
+	    zeroFrame = -1;
+	}
+    }
+
+    /**
+     * Return the physical page number of the zero page.
+     *
+     * @return	the zero page, or <tt>-1</tt> if no page is mapped to it.
+     */
+    static int getZeroFrame() {
+	return zeroFrame;
+    }
+
+    /**
+     * Record that the specified physical page holds the specified virtual
+     * page of a process, making it a candidate for eviction.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page held in the physical page.
+     */
+    static void setFrameOwner(int ppn, VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(frameOwners[ppn] == null);
+	frameOwners[ppn] = process;
+	frameVPNs[ppn] = vpn;
+	frameReadOnly[ppn] = process.getEntry(vpn).readOnly;
+	residentPages.insert(process.getPID(), vpn, ppn);
+	replacementPolicy.pageLoaded(ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove the specified physical page from the inverted page table, before
+     * it is freed.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void clearFrameOwner(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	removeFrameOwner(ppn);
+	framePinned[ppn] = false;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove a physical page from the inverted page table and its hashed
+     * index, if it has an owner. Interrupts must be disabled.
+     */
+    private static void removeFrameOwner(int ppn) {
+	if (frameOwners[ppn] != null) {
+	    residentPages.remove(frameOwners[ppn].getPID(), frameVPNs[ppn]);
+	    frameOwners[ppn] = null;
+	}
+    }
+
+    /**
+     * Keep the specified physical page from being evicted until it is
+     * unpinned, while the kernel copies out of it.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void pinFrame(int ppn) {
+	framePinned[ppn] = true;
+    }
+
+    /**
+     * Allow a page pinned by <tt>pinFrame()</tt> to be evicted again.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void unpinFrame(int ppn) {
+	framePinned[ppn] = false;
+    }
+
+    /**
+     * Choose a physical page using the replacement policy, and take it from
+     * its owner. Pages with no owner, pinned pages, and pages with futex
+     * waiters are never chosen. If the victim must be written to swap, up to
+     * <tt>maxWriteBatch-1</tt> more unreferenced such pages found after it
+     * are evicted along with it.
+     *
+     * @return	the physical page number, or <tt>-1</tt> if no page could be
+     *		evicted.
+     */
+    private static int evictFrame() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// bring the used and dirty bits up to date before looking at them
+	syncTLB();
+
+	int[] victims = new int[maxWriteBatch];
+	int numVictims = 0;
+
+	int victim = replacementPolicy.chooseVictim();
+	if (victim == -1) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	Lib.assertTrue(isEvictable(victim));
+	victims[numVictims++] = victim;
+
+	// look ahead, without disturbing the used bits, for more pages to write
+	int numPhysPages = frameOwners.length;
+	if (frameOwners[victim].needsSwapWrite(frameVPNs[victim])) {
+	    for (int i=1; i<numPhysPages && numVictims < maxWriteBatch; i++) {
+		int ppn = (victim+i) % numPhysPages;
+		if (!isEvictable(ppn))
+		    continue;
+
+		VMProcess owner = frameOwners[ppn];
+		if (!owner.getEntry(frameVPNs[ppn]).used &&
+		    owner.needsSwapWrite(frameVPNs[ppn]))
+		    victims[numVictims++] = ppn;
+	    }
+	}
+
+	VMProcess[] owners = new VMProcess[numVictims];
+	for (int i=0; i<numVictims; i++) {
+	    Lib.debug(dbgVM, "evicting page " + victims[i] + " (vpn "
+		      + frameVPNs[victims[i]] + ")");
+
+	    owners[i] = frameOwners[victims[i]];
+	    removeFrameOwner(victims[i]);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	int[] writes = new int[numVictims];
+	int numWrites = 0;
+	for (int i=0; i<numVictims; i++) {
+	    if (owners[i].pageOut(frameVPNs[victims[i]]))
+		writes[numWrites++] = i;
+	}
+
+	if (numWrites > 0) {
+	    int slot = swapFile.allocateSlots(numWrites);
+
+	    int[] ppns = new int[numWrites];
+	    for (int i=0; i<numWrites; i++) {
+		ppns[i] = victims[writes[i]];
+		owners[writes[i]].setSwapSlot(frameVPNs[ppns[i]], slot+i);
+	    }
+
+	    swapFile.write(slot, ppns, numWrites);
+	}
+
+	// the extra pages were only evicted to share the write
+	for (int i=1; i<numVictims; i++)
+	    UserKernel.freePage(victims[i]);
+
+	return victims[0];
+    }
+
+    /**
+     * Test whether the specified physical page may be evicted. Interrupts
+     * must be disabled.
+     */
+    private static boolean isEvictable(int ppn) {
+	return frameOwners[ppn] != null && !framePinned[ppn] &&
+	    !UserKernel.hasFutexWaiters(ppn);
+    }
+
+    /**
+     * Make the TLB belong to the specified process. The previous owner's
+     * translations are saved under its ASID, and the process's own saved
+     * translations are reloaded, after giving it an ASID if it has none. If
+     * <i>flush</i> is set, the TLB is left empty instead, even if the
+     * process already owns it.
+     *
+     * @param	process	the process about to run.
+     * @param	flush	<tt>true</tt> to leave the TLB empty.
+     */
+    static void switchTLB(VMProcess process, boolean flush) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (tlbOwner != process || flush) {
+	    syncTLB();
+
+	    Processor processor = Machine.processor();
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry entry = processor.readTLBEntry(i);
+		if (tlbOwner != null && tlbOwner.asid != -1)
+		    savedTLBs[tlbOwner.asid][i] = entry;
+
+		entry = new TranslationEntry(entry);
+		entry.valid = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+
+	    tlbOwner = process;
+
+	    if (!flush) {
+		if (process.asid == -1)
+		    allocateASID(process);
+		else
+		    reloadTLB(process.asid);
+
+		asidLastRun[process.asid] = ++numSwitches;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Give a process an ASID with no saved translations, taking it from the
+     * least recently run process if none is free. Interrupts must be
+     * disabled.
+     */
+    private static void allocateASID(VMProcess process) {
+	int asid = -1;
+	for (int i=0; i<numASIDs; i++) {
+	    if (asidOwners[i] == null) {
+		asid = i;
+		break;
+	    }
+
+	    if (asid == -1 || asidLastRun[i] < asidLastRun[asid])
+		asid = i;
+	}
+
+	if (asidOwners[asid] != null) {
+	    Lib.debug(dbgVM, "recycling ASID " + asid);
+	    asidOwners[asid].asid = -1;
+	}
+
+	for (int i=0; i<savedTLBs[asid].length; i++)
+	    savedTLBs[asid][i].valid = false;
+
+	asidOwners[asid] = process;
+	process.asid = asid;
+    }
+
+    /**
+     * Load the translations saved under an ASID back into the TLB.
+     * Interrupts must be disabled.
+     */
+    private static void reloadTLB(int asid) {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (savedTLBs[asid][i].valid)
+		processor.writeTLBEntry(i, savedTLBs[asid][i]);
+	}
+    }
+
+    /**
+     * Forget about a process that is releasing its address space, so that
+     * its translations are neither used nor written back, and free its
+     * ASID.
+     *
+     * @param	process	the exiting process.
+     */
+    static void releaseTLB(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (tlbOwner == process) {
+	    switchTLB(process, true);
+	    tlbOwner = null;
+	}
+
+	if (process.asid != -1) {
+	    asidOwners[process.asid] = null;
+	    process.asid = -1;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Copy the used and dirty bits set by the processor in the TLB into the
+     * owner's page table, and clear the used bits in the TLB, so that the
+     * replacement policy sees every reference made since it last looked.
+     */
+    static void syncTLB() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (!entry.valid || tlbOwner == null)
+		continue;
+
+	    mergeTLBEntry(entry);
+	    entry.used = false;
+	    processor.writeTLBEntry(i, entry);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Load a translation of the TLB owner into the TLB, replacing an invalid
+     * entry if there is one, and otherwise the entries in turn.
+     *
+     * @param	process	the process the translation belongs to, which must
+     *			own the TLB.
+     * @param	entry	the translation to load.
+     */
+    static void installTLBEntry(VMProcess process, TranslationEntry entry) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(process == tlbOwner && entry.valid);
+
+	Processor processor = Machine.processor();
+	int victim = -1;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+
+	if (victim == -1) {
+	    victim = nextTLBVictim;
+	    nextTLBVictim = (nextTLBVictim+1) % processor.getTLBSize();
+	    mergeTLBEntry(processor.readTLBEntry(victim));
+	}
+
+	// the processor keeps its own copy
+	processor.writeTLBEntry(victim, entry);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return a TLB entry that can be replaced without losing a translation
+     * in active use: an invalid entry if there is one, and otherwise an
+     * entry whose used bit is clear. Interrupts must be disabled.
+     *
+     * @param	keepVPN	a virtual page whose entry must not be chosen, or
+     *			<tt>-1</tt>.
+     * @return	the TLB entry number, or <tt>-1</tt> if every entry is valid
+     *		and in use.
+     */
+    private static int findTLBSlot(int keepVPN) {
+	Processor processor = Machine.processor();
+
+	int unused = -1;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (!entry.valid)
+		return i;
+	    if (!entry.used && entry.vpn != keepVPN && unused == -1)
+		unused = i;
+	}
+
+	return unused;
+    }
+
+    /**
+     * Load translations of resident pages continuing a sweep into the TLB.
+     * Starting one stride past <i>vpn</i>, loads up to <i>count</i> pages,
+     * stopping at the first page that is not resident or when no TLB entry
+     * can be spared. Clears the TLB used bits first, so that an entry is
+     * spared only if it has not been referenced since the previous miss.
+     *
+     * @param	process	the process that missed in the TLB, which must own
+     *			the TLB.
+     * @param	vpn	the virtual page that missed, already in the TLB.
+     * @param	stride	the distance in pages between pages of the sweep.
+     * @param	count	the largest number of pages to load.
+     * @return	the number of pages loaded.
+     */
+    static int prefetchTLB(VMProcess process, int vpn, int stride,
+			   int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(process == tlbOwner);
+	syncTLB();
+
+	Processor processor = Machine.processor();
+	int loaded = 0;
+	while (loaded < count) {
+	    int nextVPN = vpn + (loaded+1)*stride;
+	    int ppn = residentPages.lookup(process.getPID(), nextVPN);
+	    if (ppn == -1 || isInTLB(nextVPN))
+		break;
+
+	    int slot = findTLBSlot(vpn);
+	    if (slot == -1)
+		break;
+
+	    // mark it used, so that it is not itself replaced by this sweep
+	    refillEntry.vpn = nextVPN;
+	    refillEntry.ppn = ppn;
+	    refillEntry.valid = true;
+	    refillEntry.readOnly = frameReadOnly[ppn];
+	    refillEntry.used = true;
+	    processor.writeTLBEntry(slot, refillEntry);
+	    refillEntry.used = false;
+
+	    loaded++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return loaded;
+    }
+
+    /**
+     * Test whether the TLB holds a translation of the specified page.
+     * Interrupts must be disabled.
+     */
+    private static boolean isInTLB(int vpn) {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.vpn == vpn)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Return the number of pages to prefetch into the TLB when a miss
+     * continues a sweep.
+     *
+     * @return	the value of <tt>VMKernel.tlbPrefetch</tt>.
+     */
+    static int getTLBPrefetch() {
+	return tlbPrefetch;
+    }
+
+    /**
+     * Record a TLB miss in the reference trace, if one is being kept. The
+     * processor does not report the addresses it translates through the TLB,
+     * so while tracing, the TLB is narrowed on every miss to the page holding
+     * the current instruction, leaving room only for the page that missed.
+     * Each time a process moves on to a different page, then, it misses and
+     * the page is recorded; only repeated references to one page, and data
+     * references to the page holding the code referencing them, go unseen.
+     *
+     * @param	process	the process that missed in the TLB, which must own
+     *			the TLB.
+     * @param	vpn	the virtual page that missed.
+     */
+    static void traceReference(VMProcess process, int vpn) {
+	if (referenceTrace == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(process == tlbOwner);
+
+	Processor processor = Machine.processor();
+	int pcVPN =
+	    Processor.pageFromAddress(processor.readRegister(Processor.regPC));
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.vpn != pcVPN) {
+		mergeTLBEntry(entry);
+		entry.valid = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	referenceTrace.record(process.getPID(), vpn);
+    }
+
+    /**
+     * Return the largest number of pages to read ahead when a page fault
+     * follows the previous one.
+     *
+     * @return	the value of <tt>VMKernel.readAhead</tt>.
+     */
+    static int getReadAhead() {
+	return readAhead;
+    }
+
+    /**
+     * Load the translation of a resident page of the TLB owner into the TLB,
+     * finding it in the hashed inverted page table.
+     *
+     * @param	process	the process that missed in the TLB, which must own
+     *			the TLB.
+     * @param	vpn	the virtual page that missed.
+     * @return	<tt>true</tt> if the page was resident and its translation was
+     *		loaded, or <tt>false</tt> if it must be brought in first.
+     */
+    static boolean refillTLB(VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = residentPages.lookup(process.getPID(), vpn);
+	if (ppn != -1) {
+	    refillEntry.vpn = vpn;
+	    refillEntry.ppn = ppn;
+	    refillEntry.valid = true;
+	    refillEntry.readOnly = frameReadOnly[ppn];
+	    installTLBEntry(process, refillEntry);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return ppn != -1;
+    }
+
+    /**
+     * Remove the translation of a virtual page from the TLB, if the TLB holds
+     * it, copying its used and dirty bits into the page table first. If the
+     * process is not running, the translation is removed from those saved
+     * under its ASID instead.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the virtual page.
+     */
+    static void invalidateTLBEntry(VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (process == tlbOwner) {
+	    Processor processor = Machine.processor();
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry entry = processor.readTLBEntry(i);
+		if (entry.valid && entry.vpn == vpn) {
+		    mergeTLBEntry(entry);
+		    entry.valid = false;
+		    processor.writeTLBEntry(i, entry);
+		}
+	    }
+	}
+	else if (process.asid != -1) {
+	    // the bits were copied into the page table when it was saved
+	    for (TranslationEntry entry : savedTLBs[process.asid]) {
+		if (entry.vpn == vpn)
+		    entry.valid = false;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry into the TLB owner's page
+     * table.
+     */
+    private static void mergeTLBEntry(TranslationEntry tlbEntry) {
+	if (!tlbEntry.valid)
+	    return;
+
+	TranslationEntry entry = tlbOwner.getEntry(tlbEntry.vpn);
+	if (entry != null && entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * The physical pages of the machine, as seen by the replacement policy.
+     * The used and dirty bits are those of the owner's page table, brought
+     * up to date by <tt>syncTLB()</tt> before the policy is consulted, and
+     * time is measured in ticks. Only called with interrupts disabled.
+     */
+    private static class KernelFrames implements ReplacementPolicy.Frames {
+	public int getNumFrames() {
+	    return frameOwners.length;
+	}
+
+	public boolean isEvictable(int frame) {
+	    return VMKernel.isEvictable(frame);
+	}
+
+	public boolean isUsed(int frame) {
+	    return getFrameEntry(frame).used;
+	}
+
+	public void clearUsed(int frame) {
+	    getFrameEntry(frame).used = false;
+	}
+
+	public boolean isDirty(int frame) {
+	    return getFrameEntry(frame).dirty;
+	}
+
+	public long getTime() {
+	    return Machine.timer().getTime();
+	}
+
+	private TranslationEntry getFrameEntry(int frame) {
+	    return frameOwners[frame].getEntry(frameVPNs[frame]);
+	}
+    }
+
+    /**
+     * Serializes paging: every change to the residency of a user page, and
+     * every change to the inverted page table, is made while holding this
+     * lock.
+     */
+    static Lock vmLock;
+
+    /** The file holding evicted pages. */
+    static SwapFile swapFile;
+
+    /** Signalled, with <tt>vmLock</tt> held, to wake the page-out daemon. */
+    private static Condition pageOutNeeded;
+    /** The number of free pages below which the daemon is woken. */
+    private static int pageOutLowWater;
+    /** The number of free pages the daemon evicts pages to reach. */
+    private static int pageOutHighWater;
+
+    /** The physical page of zeros shared by zero-filled pages, or -1. */
+    private static int zeroFrame = -1;
+    /** The number of pages mapped to the zero page. */
+    private static int numZeroMappings = 0;
+
+    /** The process owning each physical page, or <tt>null</tt>. */
+    private static VMProcess[] frameOwners;
+    /** The virtual page held in each owned physical page. */
+    private static int[] frameVPNs;
+    /** Whether each physical page is pinned in memory. */
+    private static boolean[] framePinned;
+    /** Whether each owned physical page is mapped read-only. */
+    private static boolean[] frameReadOnly;
+    /** The owned physical pages, indexed by process ID and virtual page. */
+    private static InvertedPageTable residentPages;
+    /** Scratch space for building TLB entries on the refill path. */
+    private static TranslationEntry refillEntry = new TranslationEntry();
+    /** The policy choosing which physical page to evict. */
+    private static ReplacementPolicy replacementPolicy;
+    /** The default value of <tt>VMKernel.replacementPolicy</tt>. */
+    private static final String defaultReplacementPolicy =
+	ClockPolicy.class.getName();
+    /** The trace of page references being kept, or <tt>null</tt>. */
+    private static ReferenceTrace referenceTrace = null;
+
+    /** The process whose translations are in the TLB. */
+    private static VMProcess tlbOwner = null;
+    /** The next TLB entry to replace when none is invalid. */
+    private static int nextTLBVictim = 0;
+
+    /** The process holding each ASID, or <tt>null</tt>. */
+    private static VMProcess[] asidOwners;
+    /** When the holder of each ASID was last switched in. */
+    private static long[] asidLastRun;
+    /** The TLB contents saved under each ASID. */
+    private static TranslationEntry[][] savedTLBs;
+    /** The number of times a process has been given the TLB. */
+    private static long numSwitches = 0;
+
+    /** The number of pages prefetched into the TLB on a sequential miss. */
+    private static int tlbPrefetch;
+    /** The default value of <tt>tlbPrefetch</tt>. */
+    private static final int defaultTLBPrefetch = 0;
+
+    /** The largest number of pages read ahead on a sequential fault. */
+    private static int readAhead;
+    /** The default value of <tt>readAhead</tt>. */
+    private static final int defaultReadAhead = 4;
+
+    /** The number of ASIDs the kernel hands out. */
+    private static final int numASIDs = 8;
+
+    /** The largest number of pages written to swap at once. */
+    private static final int maxWriteBatch = 4;
+    /** The name of the swap file. */
+    private static final String swapFileName = "swap";
+    /** The default value of <tt>VMKernel.swapCacheSize</tt>, in bytes. */
+    private static final int defaultSwapCacheSize = 8*Processor.pageSize;
+
+    private static final int pageSize = Processor.pageSize;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
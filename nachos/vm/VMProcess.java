@@ -5,8 +5,21 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * Every page except the kernel data page starts out non-resident, and is
+ * brought into a physical page the first time it is touched: from the swap
+ * file if it was evicted while modified, from the mapped file or executable
+ * section that backs it. A page that would start out as zeros is instead
+ * mapped read-only to the kernel's zero page, and only given a physical page
+ * of its own when it is first written. Any resident page may later be
+ * evicted by <tt>VMKernel</tt> to make room for another. A page
+ * read from swap keeps its slot until it is modified, so a clean page with a
+ * slot can be evicted without being written.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -26,28 +39,722 @@ public class VMProcess extends UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Rather than installing a page table,
+     * takes over the TLB, which is refilled on demand by TLB misses.
+     *
+     * <p>
+     * Once the process has called <tt>exit()</tt>, the TLB is flushed every
+     * time, so that its remaining threads trap into the kernel and finish.
      */
     public void restoreState() {
-	super.restoreState();
+	VMKernel.switchTLB(this, exiting);
+	UserKernel.updateKernelPage();
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. No physical memory is allocated, except for a reference
+     * to the kernel data page, so this never fails.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageTable[vpn] = new TranslationEntry(vpn, -1, false,
+						      section.isReadOnly(),
+						      false, false);
+	    }
+	}
+
+	// the stack and argument pages are zero-filled on demand
+	for (int vpn=kernelPageVPN-stackPages-1; vpn<kernelPageVPN; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	shareFrame(UserKernel.getKernelPage());
+	pageTable[kernelPageVPN] =
+	    new TranslationEntry(kernelPageVPN, UserKernel.getKernelPage(),
+				 true, true, false, false);
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.vmLock.acquire();
+
+	VMKernel.releaseTLB(this);
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry == null)
+		continue;
+
+	    if (entry.valid)
+		freeFrame(entry.ppn);
+	    freeSwapSlot(vpn);
+
+	    pageTable[vpn] = null;
+	}
+
+	VMKernel.vmLock.release();
+
+	releaseCoff();
+    }
+
+    /**
+     * Bring in a non-resident page of this process.
+     *
+     * @param	vpn	the virtual page to bring in.
+     * @return	<tt>true</tt> if the page is now valid, or <tt>false</tt> if
+     *		<i>vpn</i> is not part of this process's address space or no
+     *		physical page could be found for it.
+     */
+    protected boolean handlePageFault(int vpn) {
+	return handlePageFault(vpn, false);
+    }
+
+    /**
+     * Bring in a non-resident page of this process, to be read or written.
+     *
+     * @param	vpn	the virtual page to bring in.
+     * @param	writing	<tt>true</tt> if the page is about to be written.
+     * @return	<tt>true</tt> if the page is now valid.
+     */
+    private boolean handlePageFault(int vpn, boolean writing) {
+	VMKernel.vmLock.acquire();
+
+	// another thread may have loaded or unmapped the page while we waited
+	TranslationEntry entry = getEntry(vpn);
+	boolean loaded = (entry != null &&
+			  (entry.valid || pageIn(entry, writing)));
+
+	VMKernel.vmLock.release();
+	return loaded;
+    }
+
+    /**
+     * Return the translation entry for a kernel access to the specified
+     * virtual page of this process. A page the kernel is about to write is
+     * brought in writable, rather than mapped to the zero page first.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	writing	<tt>true</tt> if the kernel will write the page.
+     * @return	the translation entry for the page, or <tt>null</tt> if the
+     *		access is not allowed.
+     */
+    protected TranslationEntry getTranslation(int vpn, boolean writing) {
+	TranslationEntry entry = getEntry(vpn);
+	if (writing && entry != null && !entry.valid)
+	    handlePageFault(vpn, true);
+
+	return super.getTranslation(vpn, writing);
+    }
+
+    /**
+     * Load a non-resident page into a newly allocated physical page. The
+     * caller must hold <tt>vmLock</tt>.
+     *
+     * <p>
+     * If the page follows the page of the previous fault, the process is
+     * taken to be scanning its address space, and the next few pages are
+     * read ahead, in the same file operation, if they come from the same
+     * executable section or from the following swap slots.
+     *
+     * <p>
+     * A page that would be filled with zeros, a page of stack or of an
+     * uninitialized section that has never been written, is instead mapped
+     * read-only to the kernel's zero page, unless it is about to be written.
+     * It is given a physical page of its own by <tt>handleCopyOnWrite()</tt>
+     * when it is first written.
+     *
+     * @param	entry	the translation entry of the page.
+     * @param	writing	<tt>true</tt> if the page is being brought in to be
+     *			written.
+     * @return	<tt>true</tt> if the page was loaded.
+     */
+    private boolean pageIn(TranslationEntry entry, boolean writing) {
+	int vpn = entry.vpn;
+	int slot = getSwapSlot(vpn);
+	Mapping mapping = findMapping(vpn);
+	int s = findSection(vpn);
+
+	// a page of zeros read before it is written shares the zero page
+	if (!writing && slot == -1 && mapping == null &&
+	    (s == -1 || !coff.getSection(s).isInitialzed())) {
+	    int zeroFrame = VMKernel.acquireZeroFrame();
+	    if (zeroFrame == -1)
+		return false;
+
+	    Lib.debug(dbgVM, "\tmapping page " + vpn + " to the zero page");
+
+	    countFrames(1);
+	    numPageFaults++;
+	    lastFaultVPN = vpn;
+
+	    entry.ppn = zeroFrame;
+	    entry.readOnly = true;
+	    entry.dirty = false;
+	    entry.used = false;
+	    entry.valid = true;
+	    return true;
+	}
+
+	int ppn = VMKernel.allocateFrame();
+	if (ppn == -1)
+	    return false;
+
+	numPageFaults++;
+
+	boolean sequential = (vpn == lastFaultVPN+1);
+
+	int[] ppns = new int[1 + (sequential ? VMKernel.getReadAhead() : 0)];
+	ppns[0] = ppn;
+	int count = 1;
+
+	if (slot != -1) {
+	    count = allocateReadAhead(vpn, slot, null, ppns);
+	    VMKernel.swapFile.read(slot, ppns, count);
+	}
+	else if (mapping != null) {
+	    readMappedPage(mapping, vpn, ppn);
+	}
+	else if (s != -1 && coff.getSection(s).isInitialzed()) {
+	    CoffSection section = coff.getSection(s);
+	    count = allocateReadAhead(vpn, -1, section, ppns);
+
+	    Lib.debug(dbgProcess, "\tloading " + count + " pages at " + vpn
+		      + " of " + section.getName());
+
+	    UserKernel.coffCache.loadPages(section, vpn - section.getFirstVPN(),
+					   ppns, count);
+	}
+	else {
+	    zeroPage(ppn);
+	}
+
+	for (int i=0; i<count; i++) {
+	    TranslationEntry loaded = pageTable[vpn+i];
+	    loaded.ppn = ppns[i];
+	    loaded.dirty = false;
+	    loaded.used = false;
+	    loaded.valid = true;
+
+	    countFrames(1);
+	    VMKernel.setFrameOwner(ppns[i], this, vpn+i);
+	}
+
+	lastFaultVPN = vpn + count-1;
+	return true;
+    }
+
+    /**
+     * Find the pages after a faulting page that can be read along with it,
+     * and allocate free physical pages for them. A page can be read ahead if
+     * it is not resident, and either has the next swap slot, or has none
+     * and lies in the same section. Physical pages are only taken if they
+     * are free; nothing is evicted to make room for a read-ahead.
+     *
+     * @param	vpn	the faulting page.
+     * @param	slot	the swap slot of the faulting page, or <tt>-1</tt>.
+     * @param	section	the section of the faulting page if it is loaded
+     *			from the executable, or <tt>null</tt>.
+     * @param	ppns	the physical pages to read into; the first entry is
+     *			the faulting page's, and the rest are filled in, up to
+     *			the length of the array.
+     * @return	the number of pages to read, counting the faulting page.
+     */
+    private int allocateReadAhead(int vpn, int slot, CoffSection section,
+				  int[] ppns) {
+	int count = 1;
+	while (count < ppns.length) {
+	    int nextVPN = vpn + count;
+	    TranslationEntry entry = getEntry(nextVPN);
+	    if (entry == null || entry.valid || findMapping(nextVPN) != null)
+		break;
+
+	    if (section == null) {
+		if (getSwapSlot(nextVPN) != slot+count)
+		    break;
+	    }
+	    else if (getSwapSlot(nextVPN) != -1 ||
+		     nextVPN >= section.getFirstVPN()+section.getLength()) {
+		break;
+	    }
+
+	    int ppn = UserKernel.allocatePage();
+	    if (ppn == -1)
+		break;
+
+	    ppns[count++] = ppn;
+	}
+
+	if (count > 1) {
+	    Lib.debug(dbgVM, "reading ahead " + (count-1) + " pages after "
+		      + vpn);
+	}
+
+	return count;
+    }
+
+    /**
+     * Give a page mapped to the kernel's zero page a zero-filled physical
+     * page of its own, so that it can be written. Called when the process
+     * writes to a read-only page, and when the kernel is about to.
+     *
+     * @param	vpn	the virtual page to make writable.
+     * @return	<tt>true</tt> if the page may now be written, or
+     *		<tt>false</tt> if it is read-only or no physical page could be
+     *		found for it.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	VMKernel.vmLock.acquire();
+
+	// another thread may have given the page its own frame while we waited
+	TranslationEntry entry = getEntry(vpn);
+	boolean writable;
+	if (entry == null)
+	    writable = false;
+	else if (entry.valid && entry.ppn == VMKernel.getZeroFrame())
+	    writable = unshareZeroFrame(entry);
+	else
+	    writable = !entry.readOnly;
+
+	VMKernel.vmLock.release();
+	return writable;
+    }
+
+    /**
+     * Replace a mapping of the zero page with a private zero-filled page.
+     * The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	entry	the translation entry of the page.
+     * @return	<tt>true</tt> if the page now has a frame of its own.
+     */
+    private boolean unshareZeroFrame(TranslationEntry entry) {
+	int vpn = entry.vpn;
+	int ppn = VMKernel.allocateFrame();
+	if (ppn == -1)
+	    return false;
+
+	Lib.debug(dbgVM, "\tgiving page " + vpn + " its own zero-filled page");
+
+	countFrames(1);
+	zeroPage(ppn);
+
+	// the TLB still holds the read-only translation
+	boolean intStatus = Machine.interrupt().disable();
+	VMKernel.invalidateTLBEntry(this, vpn);
+	entry.ppn = ppn;
+	entry.readOnly = false;
+	entry.dirty = false;
+	entry.used = false;
+	Machine.interrupt().restore(intStatus);
+
+	freeFrame(VMKernel.getZeroFrame());
+	VMKernel.setFrameOwner(ppn, this, vpn);
+	return true;
+    }
+
+    /**
+     * Evict a resident page of this process, writing it back to its mapped
+     * file if it was modified. Called by <tt>VMKernel</tt>, holding
+     * <tt>vmLock</tt>, which takes over the physical page and writes it to
+     * swap if asked to.
+     *
+     * @param	vpn	the virtual page to evict.
+     * @return	<tt>true</tt> if the contents of the physical page must be
+     *		written to a new swap slot and recorded with
+     *		<tt>setSwapSlot()</tt>.
+     */
+    boolean pageOut(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	boolean intStatus = Machine.interrupt().disable();
+	VMKernel.invalidateTLBEntry(this, vpn);
+	entry.valid = false;
+	Machine.interrupt().restore(intStatus);
+
+	countFrames(-1);
+
+	boolean swapWrite = needsSwapWrite(vpn);
+	if (entry.dirty && !swapWrite)
+	    writeMappedPage(findMapping(vpn), vpn, entry.ppn);
+
+	entry.ppn = -1;
+	entry.dirty = false;
+	entry.used = false;
+
+	return swapWrite;
+    }
+
+    /**
+     * Test whether the specified resident page would have to be written to
+     * swap if it were evicted: that is, whether it was modified and is not
+     * part of a mapped file.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page must be written to swap.
+     */
+    boolean needsSwapWrite(int vpn) {
+	return pageTable[vpn].dirty && findMapping(vpn) == null;
+    }
+
+    /**
+     * Return the translation entry of the specified virtual page.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the page's translation entry, or <tt>null</tt> if the page is
+     *		not mapped.
+     */
+    TranslationEntry getEntry(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	return pageTable[vpn];
+    }
+
+    /**
+     * Return this process's process ID.
+     *
+     * @return	the process ID.
+     */
+    int getPID() {
+	return pid;
+    }
+
+    /**
+     * Drop a reference to a frame, removing it from the inverted page table,
+     * or to the zero page. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    protected void freeFrame(int ppn) {
+	if (ppn == VMKernel.getZeroFrame()) {
+	    VMKernel.releaseZeroFrame();
+	    countFrames(-1);
+	    return;
+	}
+
+	VMKernel.clearFrameOwner(ppn);
+	super.freeFrame(ppn);
+    }
+
+    /**
+     * Give this new process a copy of every page of the specified process.
+     * Pages the parent has modified, whether resident or swapped out, are
+     * copied now; all others are loaded on demand from where the parent got
+     * them.
+     *
+     * @param	parent	the process to copy.
+     * @return	<tt>true</tt> if the pages were copied.
+     */
+    protected boolean forkPages(UserProcess parent) {
+	VMProcess vmParent = (VMProcess) parent;
+
+	VMKernel.vmLock.acquire();
+
+	// bring the parent's dirty bits up to date
+	VMKernel.syncTLB();
+
+	pageTable = new TranslationEntry[vmParent.pageTable.length];
+	swapSlots = new int[pageTable.length];
+	Arrays.fill(swapSlots, -1);
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = vmParent.pageTable[vpn];
+	    if (entry == null || vmParent.findMapping(vpn) != null)
+		continue;
+
+	    if (vpn == kernelPageVPN) {
+		shareFrame(entry.ppn);
+		pageTable[vpn] = new TranslationEntry(entry);
+		continue;
+	    }
+
+	    // a page mapped to the zero page is only read-only until written
+	    boolean readOnly = entry.readOnly &&
+		!(entry.valid && entry.ppn == VMKernel.getZeroFrame());
+	    TranslationEntry copy = new TranslationEntry(vpn, -1, false,
+							 readOnly, false,
+							 false);
+	    pageTable[vpn] = copy;
+
+	    // clean pages with no swap slot can be reloaded like the parent's
+	    int slot = vmParent.getSwapSlot(vpn);
+	    if (!(entry.valid && entry.dirty) && slot == -1)
+		continue;
+
+	    // keep the page being copied from being evicted meanwhile
+	    int parentPPN = entry.valid ? entry.ppn : -1;
+	    if (parentPPN != -1)
+		VMKernel.pinFrame(parentPPN);
+
+	    int ppn = VMKernel.allocateFrame();
+
+	    if (parentPPN != -1)
+		VMKernel.unpinFrame(parentPPN);
+
+	    if (ppn == -1) {
+		VMKernel.vmLock.release();
+		return false;
+	    }
+
+	    countFrames(1);
+
+	    if (parentPPN != -1) {
+		System.arraycopy(memory, parentPPN*pageSize,
+				 memory, ppn*pageSize, pageSize);
+	    }
+	    else {
+		VMKernel.swapFile.read(slot, ppn);
+	    }
+
+	    copy.ppn = ppn;
+	    copy.dirty = true;
+	    copy.valid = true;
+	    VMKernel.setFrameOwner(ppn, this, vpn);
+	}
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Write back the dirty pages of a memory-mapped file, release its
+     * physical pages, and remove it from this process's address space.
+     *
+     * @param	mapping	the mapping to remove.
+     */
+    protected void unmap(Mapping mapping) {
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=mapping.firstVPN;
+	     vpn<mapping.firstVPN+mapping.numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    VMKernel.invalidateTLBEntry(this, vpn);
+	    boolean resident = entry.valid;
+	    entry.valid = false;
+	    Machine.interrupt().restore(intStatus);
+
+	    if (resident) {
+		if (entry.dirty)
+		    writeMappedPage(mapping, vpn, entry.ppn);
+
+		freeFrame(entry.ppn);
+	    }
+
+	    pageTable[vpn] = null;
+	}
+
+	mappings.remove(mapping);
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Map <i>count</i> pages of stack starting at virtual page <i>vpn</i>, to
+     * be zero-filled on demand.
+     *
+     * @param	vpn	the first virtual page of the stack.
+     * @param	count	the number of pages in the stack.
+     * @return	<tt>true</tt>, since no memory is allocated.
+     */
+    protected boolean allocateStackPages(int vpn, int count) {
+	VMKernel.vmLock.acquire();
+
+	for (int i=vpn; i<vpn+count; i++)
+	    mapPage(new TranslationEntry(i, -1, false, false, false, false));
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Release the pages mapped by <tt>allocateStackPages()</tt>, wherever
+     * they are.
+     *
+     * @param	vpn	the first virtual page of the stack.
+     * @param	count	the number of pages in the stack.
+     */
+    protected void freeStackPages(int vpn, int count) {
+	VMKernel.vmLock.acquire();
+
+	for (int i=vpn; i<vpn+count; i++) {
+	    TranslationEntry entry = pageTable[i];
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    VMKernel.invalidateTLBEntry(this, i);
+	    if (entry.valid)
+		freeFrame(entry.ppn);
+	    freeSwapSlot(i);
+	    pageTable[i] = null;
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Return the swap slot holding the specified virtual page.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the swap slot, or <tt>-1</tt> if the page is not swapped out.
+     */
+    int getSwapSlot(int vpn) {
+	return (vpn < swapSlots.length) ? swapSlots[vpn] : -1;
+    }
+
+    /**
+     * Record that the specified virtual page has been written to a swap slot,
+     * releasing any slot it had before, and growing the table of slots if it
+     * does not yet cover the page.
+     *
+     * @param	vpn	the virtual page.
+     * @param	slot	the slot holding the page.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	freeSwapSlot(vpn);
+
+	if (vpn >= swapSlots.length) {
+	    int oldLength = swapSlots.length;
+	    swapSlots = Arrays.copyOf(swapSlots, pageTable.length);
+	    Arrays.fill(swapSlots, oldLength, swapSlots.length, -1);
+	}
+
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Release the swap slot holding the specified virtual page, if any.
+     */
+    private void freeSwapSlot(int vpn) {
+	int slot = getSwapSlot(vpn);
+	if (slot != -1) {
+	    VMKernel.swapFile.freeSlot(slot);
+	    swapSlots[vpn] = -1;
+	}
+    }
+
+    /**
+     * Handle a TLB miss, by loading the translation of the faulting page into
+     * the TLB. A resident page is found in the kernel's hashed inverted page
+     * table; otherwise the page is brought in first. Then, if the miss
+     * continues a sequential sweep, translations of the next pages of the
+     * sweep are loaded too. The miss is recorded first, if the kernel is
+     * keeping a reference trace.
+     *
+     * @param	vaddr	the virtual address that missed in the TLB.
+     */
+    private void handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	VMKernel.traceReference(this, vpn);
+
+	while (!VMKernel.refillTLB(this, vpn)) {
+	    // a page first touched by a store need not share the zero page
+	    TranslationEntry entry = getEntry(vpn);
+	    if (entry != null && !entry.valid)
+		handlePageFault(vpn, isStoreMiss(vaddr));
+
+	    entry = getTranslation(vpn, false);
+	    if (entry == null) {
+		Lib.debug(dbgProcess, "Invalid address 0x"
+			  + Lib.toHexString(vaddr));
+		Lib.assertNotReached("Unexpected exception");
+	    }
+
+	    // the page may have been evicted again since it was brought in
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (pageTable[vpn] == entry && entry.valid) {
+		VMKernel.installTLBEntry(this, entry);
+		Machine.interrupt().restore(intStatus);
+		break;
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	prefetchTLB(vpn);
+    }
+
+    /**
+     * Test whether a TLB miss was taken by a store, by decoding the
+     * instruction at the PC. A miss on the page holding the PC is taken by
+     * the instruction fetch.
+     *
+     * @param	vaddr	the virtual address that missed in the TLB.
+     * @return	<tt>true</tt> if the access that missed was a store.
+     */
+    private boolean isStoreMiss(int vaddr) {
+	int pc = Machine.processor().readRegister(Processor.regPC);
+	if (Processor.pageFromAddress(pc) == Processor.pageFromAddress(vaddr))
+	    return false;
+
+	byte[] instruction = new byte[4];
+	if (readVirtualMemory(pc, instruction) != instruction.length)
+	    return false;
+
+	switch (Lib.bytesToInt(instruction, 0) >>> 26) {
+	case 0x28:	// sb
+	case 0x29:	// sh
+	case 0x2A:	// swl
+	case 0x2B:	// sw
+	case 0x2E:	// swr
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Detect whether a TLB miss continues a sweep through memory, and if so
+     * prefetch translations for the pages the sweep will touch next. Each of
+     * a few recent misses is remembered as a stream; a miss within
+     * <tt>maxStride</tt> pages of a stream extends it. Once two misses in a
+     * row extend a stream by the same stride, the stream is taken to be a
+     * sweep. After a prefetch, the stream is advanced to the last page
+     * prefetched, so that the sweep's next miss is again one stride away.
+     *
+     * @param	vpn	the virtual page that missed.
+     */
+    private void prefetchTLB(int vpn) {
+	int numPrefetch = VMKernel.getTLBPrefetch();
+	if (numPrefetch == 0)
+	    return;
+
+	for (int i=0; i<numStreams; i++) {
+	    int stride = vpn - streamVPNs[i];
+	    if (stride == 0 || Math.abs(stride) > maxStride)
+		continue;
+
+	    int count = 0;
+	    if (stride == streamStrides[i])
+		count = VMKernel.prefetchTLB(this, vpn, stride, numPrefetch);
+
+	    streamVPNs[i] = vpn + count*stride;
+	    streamStrides[i] = stride;
+	    return;
+	}
+
+	streamVPNs[nextStream] = vpn;
+	streamStrides[nextStream] = 0;
+	nextStream = (nextStream+1) % numStreams;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -60,13 +767,45 @@ public class VMProcess extends UserProcess {
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
 
-	switch (cause) {
-	default:
-	    super.handleException(cause);
-	    break;
+	// an exiting thread finishes instead of handling a TLB miss
+	if (cause == Processor.exceptionTLBMiss && !exiting) {
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    return;
 	}
+
+	super.handleException(cause);
     }
-	
+
+    /**
+     * The swap slot holding each virtual page that was evicted while
+     * modified, or <tt>-1</tt>.
+     */
+    private int[] swapSlots;
+
+    /**
+     * The last page brought in by the previous page fault. Starts just before
+     * page 0, so that a program starting at its first page reads ahead.
+     */
+    private int lastFaultVPN = -1;
+
+    /**
+     * The address-space identifier under which <tt>VMKernel</tt> saves this
+     * process's TLB entries, or <tt>-1</tt> if it has none.
+     */
+    int asid = -1;
+
+    /** The last page of each recent stream of TLB misses. */
+    private int[] streamVPNs = new int[numStreams];
+    /** The last stride of each stream, or <tt>0</tt> for a new stream. */
+    private int[] streamStrides = new int[numStreams];
+    /** The stream to replace when a miss starts a new one. */
+    private int nextStream = 0;
+
+    /** The number of TLB miss streams followed per process. */
+    private static final int numStreams = 4;
+    /** The largest stride, in pages, recognized as a sweep. */
+    private static final int maxStride = 2;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
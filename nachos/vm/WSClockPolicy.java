@@ -0,0 +1,97 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps the frames,
+ * but each frame also remembers when its page was last seen referenced. A
+ * page that has gone unreferenced for longer than the working-set window has
+ * left its process's working set, and is evicted, clean pages first. If
+ * every page is still in some working set, the first unreferenced page the
+ * hand passed is evicted instead.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy with the default window.
+     */
+    public WSClockPolicy() {
+    }
+
+    /**
+     * Set the working-set window, in the time units of the frames.
+     *
+     * @param	window	the length of time a page stays in the working set
+     *			after it is last referenced.
+     */
+    public void setWindow(long window) {
+	Lib.assertTrue(window >= 0);
+	this.window = window;
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+	lastUse = new long[frames.getNumFrames()];
+    }
+
+    public void pageLoaded(int frame) {
+	lastUse[frame] = frames.getTime();
+    }
+
+    public int chooseVictim() {
+	int numFrames = frames.getNumFrames();
+	long now = frames.getTime();
+
+	int dirtyVictim = -1, unreferenced = -1;
+	for (int i=0; i<numFrames; i++) {
+	    int frame = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (!frames.isEvictable(frame))
+		continue;
+
+	    if (frames.isUsed(frame)) {
+		frames.clearUsed(frame);
+		lastUse[frame] = now;
+	    }
+	    else if (now - lastUse[frame] > window) {
+		if (!frames.isDirty(frame))
+		    return frame;
+		if (dirtyVictim == -1)
+		    dirtyVictim = frame;
+	    }
+	    else if (unreferenced == -1) {
+		unreferenced = frame;
+	    }
+	}
+
+	if (dirtyVictim != -1)
+	    return dirtyVictim;
+	if (unreferenced != -1)
+	    return unreferenced;
+
+	// every page was referenced, and its used bit is now clear
+	for (int i=0; i<numFrames; i++) {
+	    int frame = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (frames.isEvictable(frame))
+		return frame;
+	}
+
+	return -1;
+    }
+
+    private Frames frames;
+    private int hand = 0;
+
+    /** When each frame's page was last seen referenced. */
+    private long[] lastUse;
+    /** The working-set window. */
+    private long window = defaultWindow;
+
+    /** The default working-set window. */
+    public static final long defaultWindow = 10000;
+}